@@ -0,0 +1,71 @@
+package org.hl7.fhir.contrib.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH result files written with {@code -rf json}, and exits with status 1 if any benchmark regressed by more
+ * than the threshold: a higher score in the time based modes, a lower score in throughput mode.
+ * <p>
+ * Usage: {@code CompareResults baseline.json current.json [threshold in percent, default 10]}
+ */
+public final class CompareResults {
+
+    private record Result(String mode, double score, String unit) {
+    }
+
+    private CompareResults() {
+
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareResults baseline.json current.json [threshold in percent]");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = read(Path.of(args[0]));
+        Map<String, Result> current = read(Path.of(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.10;
+
+        int regressions = 0;
+        for (var entry : current.entrySet()) {
+            Result before = baseline.get(entry.getKey());
+            Result after = entry.getValue();
+            if (before == null) {
+                System.out.printf("%-80s %14s %14.3f %s (new)%n", entry.getKey(), "", after.score(), after.unit());
+                continue;
+            }
+            double change = (after.score() - before.score()) / before.score();
+            boolean regressed = "thrpt".equals(after.mode()) ? change < -threshold : change > threshold;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-80s %14.3f %14.3f %s %+7.1f%%%s%n", entry.getKey(), before.score(), after.score(), after.unit(), change * 100, regressed ? "  REGRESSION" : "");
+        }
+        if (regressions > 0) {
+            System.out.printf("%d benchmark(s) regressed by more than %.0f%%%n", regressions, threshold * 100);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return The results by benchmark and parameters
+     */
+    private static Map<String, Result> read(Path file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (JsonNode run : new ObjectMapper().readTree(file.toFile())) {
+            Map<String, String> params = new TreeMap<>();
+            run.path("params").fields().forEachRemaining(param -> params.put(param.getKey(), param.getValue().asText()));
+            String key = run.path("benchmark").asText() + (params.isEmpty() ? "" : " " + params);
+            JsonNode metric = run.path("primaryMetric");
+            results.put(key, new Result(run.path("mode").asText(), metric.path("score").asDouble(), metric.path("scoreUnit").asText()));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,59 @@
+package org.hl7.fhir.contrib.benchmarks;
+
+import org.hl7.fhir.contrib.ContextBuilder;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the worker context for the offline IG. A snapshot setup restores the snapshot written during warmup, a lazy
+ * setup only indexes the definitions. The eager setups parse the definitions with one loader thread, or one per processor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ContextBuildBenchmark {
+
+    @Param({"r4-eager", "r4-snapshot", "r4-lazy", "r5-eager", "r5-snapshot"})
+    public String setup;
+
+    @Param({"1", "all"})
+    public String loaderThreads;
+
+    private NpmPackage npmPackage;
+    private Path snapshotCache;
+    private int threads;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        npmPackage = OfflineIg.create(setup.substring(0, 2)).npmPackage();
+        snapshotCache = setup.endsWith("-snapshot") ? Files.createTempDirectory("fhir-codegen-snapshots") : null;
+        threads = "all".equals(loaderThreads) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(loaderThreads);
+    }
+
+    @Benchmark
+    public Object build() {
+        if (setup.startsWith("r4")) {
+            return ContextBuilder.usingR4(npmPackage).lazy(setup.endsWith("-lazy")).withLoaderThreads(threads).withSnapshotCache(snapshotCache).build();
+        }
+        return ContextBuilder.usingR5(npmPackage).withLoaderThreads(threads).withSnapshotCache(snapshotCache).build();
+    }
+}
@@ -0,0 +1,83 @@
+package org.hl7.fhir.contrib.benchmarks;
+
+import org.hl7.fhir.contrib.CodeGeneratorFactory;
+import org.hl7.fhir.contrib.ContextBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Constructing the factory (fetching and validating the package, discovering its profiles) and generating the code of one
+ * profile against an already built worker context.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GenerationBenchmark {
+
+    @Param({"r4", "r5"})
+    public String version;
+
+    private OfflineIg ig;
+    private Path output;
+    private org.hl7.fhir.r4.context.IWorkerContext r4Context;
+    private org.hl7.fhir.r5.context.IWorkerContext r5Context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ig = OfflineIg.create(version);
+        output = Files.createTempDirectory("fhir-codegen-benchmark-output");
+        if ("r4".equals(version)) {
+            r4Context = ContextBuilder.usingR4(ig.npmPackage()).build();
+        } else {
+            r5Context = ContextBuilder.usingR5(ig.npmPackage()).build();
+        }
+    }
+
+    @Benchmark
+    public Object factory() throws Exception {
+        return new CodeGeneratorFactory(ig.tarball().toString(), output.toString(), "org.hl7.fhir.example.benchmark", null);
+    }
+
+    @Benchmark
+    public String generateProfile() throws Exception {
+        if ("r4".equals(version)) {
+            var codeGenerator = new org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator(r4Context);
+            codeGenerator.setFolder(output.toString());
+            codeGenerator.setCanonical(OfflineIg.PROFILE_URL);
+            codeGenerator.setPkgName("org.hl7.fhir.example.benchmark");
+            codeGenerator.setExtensionPolicy(org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator.ExtensionPolicy.Complexes);
+            codeGenerator.setNarrative(true);
+            codeGenerator.setMeta(true);
+            codeGenerator.setKeyElementsOnly(true);
+            codeGenerator.setGenDate(null);
+            return codeGenerator.execute();
+        }
+        var codeGenerator = new org.hl7.fhir.r5.profilemodel.gen.PECodeGenerator(r5Context);
+        codeGenerator.setFolder(output.toString());
+        codeGenerator.setCanonical(OfflineIg.PROFILE_URL);
+        codeGenerator.setPkgName("org.hl7.fhir.example.benchmark");
+        codeGenerator.setExtensionPolicy(org.hl7.fhir.r5.profilemodel.gen.PECodeGenerator.ExtensionPolicy.Complexes);
+        codeGenerator.setNarrative(true);
+        codeGenerator.setMeta(true);
+        codeGenerator.setKeyElementsOnly(true);
+        codeGenerator.setVersion("r5");
+        return codeGenerator.execute();
+    }
+}
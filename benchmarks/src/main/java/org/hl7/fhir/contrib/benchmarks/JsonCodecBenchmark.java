@@ -0,0 +1,110 @@
+package org.hl7.fhir.contrib.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.contrib.ContextBuilder;
+import org.hl7.fhir.r4.context.IWorkerContext;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading the FHIR JSON of a generated R4 class: through build()/fromSource() and the HAPI parser, or through the
+ * generated Jackson codec. Both write the same JSON, which the setup checks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JsonCodecBenchmark {
+
+    @Param({"hapi", "codec"})
+    public String mode;
+
+    private IWorkerContext context;
+    private IParser parser;
+    private Object model;
+    private String json;
+    private MethodHandle fromSource;
+    private MethodHandle build;
+    private MethodHandle toJson;
+    private MethodHandle fromJson;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        context = ContextBuilder.usingR4(OfflineIg.create("r4").npmPackage()).build();
+        String pkgName = "org.hl7.fhir.example.benchmark.json";
+        Path sources = Files.createTempDirectory("fhir-codegen-benchmark-sources");
+
+        var codeGenerator = new PECodeGenerator(context);
+        codeGenerator.setFolder(sources.toString());
+        codeGenerator.setCanonical(OfflineIg.PROFILE_URL);
+        codeGenerator.setPkgName(pkgName);
+        codeGenerator.setExtensionPolicy(PECodeGenerator.ExtensionPolicy.Complexes);
+        codeGenerator.setNarrative(true);
+        codeGenerator.setMeta(true);
+        codeGenerator.setKeyElementsOnly(true);
+        codeGenerator.setJsonCodec(true);
+        codeGenerator.setGenDate(null);
+        codeGenerator.execute();
+
+        Class<?> generated = RoundTripBenchmark.compile(sources).loadClass(pkgName + "." + OfflineIg.PROFILE_NAME);
+        var lookup = MethodHandles.publicLookup();
+        fromSource = lookup.findStatic(generated, "fromSource", MethodType.methodType(generated, IWorkerContext.class, Patient.class));
+        build = lookup.findVirtual(generated, "build", MethodType.methodType(Patient.class));
+        toJson = lookup.findVirtual(generated, "toJson", MethodType.methodType(String.class));
+        fromJson = lookup.findStatic(generated, "fromJson", MethodType.methodType(generated, IWorkerContext.class, String.class));
+
+        Patient patient = new Patient().setActive(true).setGender(Enumerations.AdministrativeGender.FEMALE);
+        patient.setId("p1");
+        patient.setBirthDateElement(new DateType("1970-01-01"));
+        patient.addIdentifier().setSystem("urn:oid:1.2.208.176.1.2").setValue("0101701234");
+        patient.addName().setFamily("Hansen").addGiven("Jens");
+        patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("12345678");
+        parser = FhirContext.forR4Cached().newJsonParser();
+        model = fromSource.invoke(context, patient);
+        json = parser.encodeResourceToString((Patient) build.invoke(model));
+        if (!json.equals(toJson.invoke(model))) {
+            throw new IllegalStateException("The codec writes different JSON than the HAPI parser: " + toJson.invoke(model));
+        }
+    }
+
+    @Benchmark
+    public String write() throws Throwable {
+        if ("codec".equals(mode)) {
+            return (String) toJson.invoke(model);
+        }
+        return parser.encodeResourceToString((Patient) build.invoke(model));
+    }
+
+    @Benchmark
+    public Object read() throws Throwable {
+        if ("codec".equals(mode)) {
+            return fromJson.invoke(context, json);
+        }
+        return fromSource.invoke(context, parser.parseResource(Patient.class, json));
+    }
+}
@@ -0,0 +1,132 @@
+package org.hl7.fhir.contrib.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.hl7.fhir.contrib.ResourceScanner;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A small Implementation Guide, built from the core definitions on the class path so that the benchmarks never need network
+ * access. It holds one profile: a constraint on Patient making identifier and name required, with its snapshot derived from
+ * the core Patient definition.
+ */
+public final class OfflineIg {
+
+    public static final String PROFILE_NAME = "BenchmarkPatient";
+    public static final String PROFILE_URL = "http://example.org/fhir/benchmark/StructureDefinition/benchmark-patient";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Path tarball;
+
+    private OfflineIg(Path tarball) {
+        this.tarball = tarball;
+    }
+
+    /**
+     * @param version r4 or r5
+     */
+    public static OfflineIg create(String version) throws IOException {
+        ObjectNode profile = corePatient(version);
+        profile.put("id", "benchmark-patient");
+        profile.put("url", PROFILE_URL);
+        profile.put("version", "1.0.0");
+        profile.put("name", PROFILE_NAME);
+        profile.put("title", "Benchmark Patient");
+        profile.put("status", "draft");
+        profile.put("derivation", "constraint");
+        profile.put("baseDefinition", "http://hl7.org/fhir/StructureDefinition/Patient");
+        profile.remove("text");
+        profile.remove("extension");
+
+        ArrayNode differential = MAPPER.createArrayNode();
+        for (JsonNode element : profile.path("snapshot").path("element")) {
+            String path = element.path("path").asText();
+            if (path.equals("Patient.identifier") || path.equals("Patient.name")) {
+                ((ObjectNode) element).put("min", 1);
+                differential.addObject().put("id", path).put("path", path).put("min", 1);
+            }
+        }
+        profile.putObject("differential").set("element", differential);
+
+        ObjectNode manifest = MAPPER.createObjectNode().put("name", "example.benchmark." + version).put("version", "1.0.0");
+        manifest.putArray("fhirVersions").add("r4".equals(version) ? "4.0.1" : "5.0.0");
+        ObjectNode index = MAPPER.createObjectNode().put("index-version", 1);
+        index.putArray("files").addObject()
+                .put("filename", "StructureDefinition-benchmark-patient.json")
+                .put("resourceType", "StructureDefinition")
+                .put("id", "benchmark-patient")
+                .put("url", PROFILE_URL)
+                .put("version", "1.0.0")
+                .put("kind", "resource")
+                .put("type", "Patient")
+                .put("derivation", "constraint");
+
+        Path tarball = Files.createTempDirectory("fhir-codegen-benchmark").resolve("example.benchmark." + version + ".tgz");
+        try (var tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(Files.newOutputStream(tarball)))) {
+            add(tar, "package/package.json", MAPPER.writeValueAsBytes(manifest));
+            add(tar, "package/.index.json", MAPPER.writeValueAsBytes(index));
+            add(tar, "package/StructureDefinition-benchmark-patient.json", MAPPER.writeValueAsBytes(profile));
+        }
+        return new OfflineIg(tarball);
+    }
+
+    /**
+     * @return The core Patient StructureDefinition of the version, read from the core definitions on the class path
+     */
+    private static ObjectNode corePatient(String version) throws IOException {
+        byte[] definitions;
+        try (InputStream in = new DefaultResourceLoader().getResource("classpath:/" + version + "/definitions.json.zip").getInputStream()) {
+            definitions = in.readAllBytes();
+        }
+        try (var zis = new ZipInputStream(new ByteArrayInputStream(definitions))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.getName().endsWith(".json")) {
+                    byte[] content = zis.readAllBytes();
+                    for (var slice : ResourceScanner.entries(content)) {
+                        var summary = ResourceScanner.summarise(content, slice);
+                        if (summary != null && "http://hl7.org/fhir/StructureDefinition/Patient".equals(summary.url())) {
+                            return (ObjectNode) MAPPER.readTree(content, slice.offset(), slice.length());
+                        }
+                    }
+                }
+            }
+        }
+        throw new IOException("No Patient StructureDefinition in the " + version + " core definitions");
+    }
+
+    private static void add(TarArchiveOutputStream tar, String name, byte[] content) throws IOException {
+        var entry = new TarArchiveEntry(name);
+        entry.setSize(content.length);
+        tar.putArchiveEntry(entry);
+        tar.write(content);
+        tar.closeArchiveEntry();
+    }
+
+    /**
+     * @return The package tarball, which can be given to the plugin as a file path
+     */
+    public Path tarball() {
+        return tarball;
+    }
+
+    public NpmPackage npmPackage() throws IOException {
+        try (InputStream in = Files.newInputStream(tarball)) {
+            return NpmPackage.fromPackage(in);
+        }
+    }
+}
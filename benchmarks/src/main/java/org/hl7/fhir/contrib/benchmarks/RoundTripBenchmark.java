@@ -0,0 +1,138 @@
+package org.hl7.fhir.contrib.benchmarks;
+
+import org.hl7.fhir.contrib.ContextBuilder;
+import org.hl7.fhir.r4.context.IWorkerContext;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.profilemodel.PEBuilder;
+import org.hl7.fhir.r4.profilemodel.PEInstance;
+import org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The runtime cost of the generated R4 code: loading a Patient into the generated class, building a Patient from it and
+ * saving it into an existing Patient, for the profile model mode and the direct mode. loadUncached is the baseline of
+ * fromSource: it loads through a profile definition built for the call, as the generated code did before it cached them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({"profile", "direct"})
+    public String mode;
+
+    private IWorkerContext context;
+    private Patient patient;
+    private Object model;
+    private MethodHandle fromSource;
+    private MethodHandle build;
+    private MethodHandle save;
+    private MethodHandle create;
+    private MethodHandle load;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        context = ContextBuilder.usingR4(OfflineIg.create("r4").npmPackage()).build();
+        String pkgName = "org.hl7.fhir.example.benchmark." + mode;
+        Path sources = Files.createTempDirectory("fhir-codegen-benchmark-sources");
+
+        var codeGenerator = new PECodeGenerator(context);
+        codeGenerator.setFolder(sources.toString());
+        codeGenerator.setCanonical(OfflineIg.PROFILE_URL);
+        codeGenerator.setPkgName(pkgName);
+        codeGenerator.setExtensionPolicy(PECodeGenerator.ExtensionPolicy.Complexes);
+        codeGenerator.setNarrative(true);
+        codeGenerator.setMeta(true);
+        codeGenerator.setKeyElementsOnly(true);
+        codeGenerator.setDirect("direct".equals(mode));
+        codeGenerator.setGenDate(null);
+        codeGenerator.execute();
+
+        Class<?> generated = compile(sources).loadClass(pkgName + "." + OfflineIg.PROFILE_NAME);
+        var lookup = MethodHandles.publicLookup();
+        fromSource = lookup.findStatic(generated, "fromSource", MethodType.methodType(generated, IWorkerContext.class, Patient.class));
+        build = lookup.findVirtual(generated, "build", MethodType.methodType(Patient.class));
+        save = lookup.findVirtual(generated, "save", MethodType.methodType(void.class, IWorkerContext.class, Patient.class, boolean.class));
+        create = lookup.findConstructor(generated, MethodType.methodType(void.class));
+        load = lookup.findVirtual(generated, "load", MethodType.methodType(void.class, PEInstance.class));
+
+        patient = new Patient().setActive(true).setGender(Enumerations.AdministrativeGender.FEMALE);
+        patient.setId("p1");
+        patient.setBirthDateElement(new DateType("1970-01-01"));
+        patient.addIdentifier().setSystem("urn:oid:1.2.208.176.1.2").setValue("0101701234");
+        patient.addName().setFamily("Hansen").addGiven("Jens");
+        patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("12345678");
+        model = fromSource.invoke(context, patient);
+    }
+
+    static ClassLoader compile(Path sources) throws IOException {
+        Path classes = Files.createTempDirectory("fhir-codegen-benchmark-classes");
+        List<String> args = new ArrayList<>(List.of("-d", classes.toString(), "-classpath", System.getProperty("java.class.path"), "-nowarn", "-proc:none"));
+        try (var files = Files.walk(sources)) {
+            files.filter(f -> f.toString().endsWith(".java")).map(Path::toString).forEach(args::add);
+        }
+        if (ToolProvider.getSystemJavaCompiler().run(null, null, null, args.toArray(new String[0])) != 0) {
+            throw new IllegalStateException("Unable to compile the generated code in " + sources);
+        }
+        return new URLClassLoader(new URL[]{classes.toUri().toURL()}, RoundTripBenchmark.class.getClassLoader());
+    }
+
+    @Benchmark
+    public Object fromSource() throws Throwable {
+        return fromSource.invoke(context, patient);
+    }
+
+    @Benchmark
+    public Object loadUncached() throws Throwable {
+        Object theThing = create.invoke();
+        load.invoke(theThing, new PEBuilder(context, PEBuilder.PEElementPropertiesPolicy.EXTENSION, true).buildPEInstance(OfflineIg.PROFILE_URL, patient));
+        return theThing;
+    }
+
+    @Benchmark
+    public Object build() throws Throwable {
+        return build.invoke(model);
+    }
+
+    @Benchmark
+    public Patient save() throws Throwable {
+        Patient dest = new Patient();
+        save.invoke(model, context, dest, false);
+        return dest;
+    }
+
+    @Benchmark
+    public Object roundTrip() throws Throwable {
+        return build.invoke(fromSource.invoke(context, patient));
+    }
+}
@@ -1,25 +1,41 @@
 package org.hl7.fhir.contrib;
 
+import ca.uhn.fhir.context.FhirVersionEnum;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.hl7.fhir.utilities.npm.NpmPackage;
 
+import java.nio.file.Path;
+import javax.lang.model.SourceVersion;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 // https://maven.apache.org/guides/plugin/guide-java-plugin-development.html
 
-@Mojo(name = "generate", defaultPhase = LifecyclePhase.GENERATE_SOURCES)
+@Mojo(name = "generate", defaultPhase = LifecyclePhase.GENERATE_SOURCES, threadSafe = true)
 public class CodeGenPlugin extends AbstractMojo {
 
     public static final String PLUGIN_NAME = "fhir-codegen-maven-plugin";
 
-    @Parameter(property = "generate.packageId", required = true)
+    @Parameter(property = "generate.packageId")
     private String packageId;
 
+    /**
+     * Further packages to generate code from in the same execution. The packages of one FHIR version share a single worker
+     * context, so the core definitions and ValueSet expansions are only loaded once
+     */
+    @Parameter
+    private List<PackageConfiguration> packages;
+
     @Parameter(property = "generate.outputFolder", defaultValue = "target/generated-sources/java" )
     private String outputFolder = "target/generated-sources/java";
 
@@ -33,14 +49,170 @@ public class CodeGenPlugin extends AbstractMojo {
     }
     private Set<String> profiles;
 
+    @Parameter(property = "generate.profileKinds")
+    public void setProfileKinds(String[] profileKinds) {
+
+        this.profileKinds = Arrays.stream(profileKinds).map(String::trim).collect(Collectors.toUnmodifiableSet());
+    }
+    private Set<String> profileKinds;
+
+    @Parameter(property = "generate.profileTypes")
+    public void setProfileTypes(String[] profileTypes) {
+
+        this.profileTypes = Arrays.stream(profileTypes).map(String::trim).collect(Collectors.toUnmodifiableSet());
+    }
+    private Set<String> profileTypes;
+
+    @Parameter(property = "generate.profileDerivation")
+    private String profileDerivation;
+
+    @Parameter(property = "generate.profileUrls")
+    public void setProfileUrls(String[] profileUrls) {
+
+        this.profileUrls = Arrays.stream(profileUrls).map(String::trim).toList();
+    }
+    private List<String> profileUrls;
+
+    @Parameter(property = "generate.threads")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(property = "generate.incremental", defaultValue = "true")
+    private boolean incremental = true;
+
+    @Parameter(property = "generate.reproducible", defaultValue = "false")
+    private boolean reproducible;
+
+    @Parameter(property = "generate.snapshotCache", defaultValue = "true")
+    private boolean snapshotCache = true;
+
+    @Parameter(property = "generate.refreshSnapshot", defaultValue = "false")
+    private boolean refreshSnapshot;
+
+    @Parameter(property = "generate.lazyContext", defaultValue = "false")
+    private boolean lazyContext;
+
+    @Parameter(property = "generate.expansionCache", defaultValue = "true")
+    private boolean expansionCache = true;
+
+    @Parameter(property = "generate.sharedEnums", defaultValue = "false")
+    private boolean sharedEnums;
+
+    @Parameter(property = "generate.directMode", defaultValue = "false")
+    private boolean directMode;
+
+    @Parameter(property = "generate.lazyLoad", defaultValue = "false")
+    private boolean lazyLoad;
+
+    @Parameter(property = "generate.dirtyTracking", defaultValue = "false")
+    private boolean dirtyTracking;
+
+    @Parameter(property = "generate.jsonCodec", defaultValue = "false")
+    private boolean jsonCodec;
+
+    @Parameter(property = "generate.validation", defaultValue = "false")
+    private boolean validation;
+
+    @Parameter(property = "generate.maxEnumCodes", defaultValue = "4000")
+    private int maxEnumCodes = org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator.DEFAULT_MAX_ENUM_CODES;
+
+    @Parameter(property = "generate.report", defaultValue = "${project.build.directory}/fhir-codegen-report.json")
+    private String report = "target/fhir-codegen-report.json";
+
+    @Parameter(property = "generate.slowestProfiles", defaultValue = "10")
+    private int slowestProfiles = 10;
+
+    @Parameter(property = "generate.dependencies", defaultValue = "true")
+    private boolean dependencies = true;
+
+    @Parameter(property = "generate.shareContext", defaultValue = "true")
+    private boolean shareContext = true;
+
+    @Parameter(defaultValue = "${session}", readonly = true)
+    private MavenSession session;
+
     @Override
     public void execute() throws MojoExecutionException {
+        List<PackageConfiguration> targets = new ArrayList<>();
+        if (packageId != null && !packageId.isBlank()) {
+            targets.add(new PackageConfiguration(packageId, packageName, profiles == null ? null : profiles.toArray(new String[0])));
+        }
+        if (packages != null) {
+            targets.addAll(packages);
+        }
+        if (targets.isEmpty()) {
+            throw new MojoExecutionException("Either packageId or packages must be configured");
+        }
+        if (threads < 1) {
+            throw new MojoExecutionException("threads must be at least 1, but is " + threads);
+        }
+
         try {
-            CodeGeneratorFactory.PECodeGenerator generator = new CodeGeneratorFactory(packageId, outputFolder, packageName, profiles).produceCodeGenerator();
-            generator.generate();
+            var filter = new ProfileFilter(profileKinds, profileTypes, profileDerivation, profileUrls);
+            var registry = ContextRegistry.forSession(shareContext ? session : null);
+
+            List<CodeGeneratorFactory> factories = new ArrayList<>();
+            Map<FhirVersionEnum, Map<String, NpmPackage>> contexts = new LinkedHashMap<>();
+            for (var target : targets) {
+                NpmPackage npmPackage = registry.fetchPackage(target.getPackageId(), CodeGeneratorFactory::validatePackage);
+                String name = target.getPackageName() != null ? target.getPackageName() : packageName + "." + javaPackage(npmPackage.id());
+                Set<String> targetProfiles = target.getProfiles() == null ? null : Arrays.stream(target.getProfiles()).map(String::trim).collect(Collectors.toUnmodifiableSet());
+                factories.add(configure(new CodeGeneratorFactory(target.getPackageId(), outputFolder, name, targetProfiles, filter, registry), targets.size() == 1 ? null : name));
+                contexts.computeIfAbsent(FhirVersionEnum.forVersionString(npmPackage.fhirVersion()), v -> new LinkedHashMap<>())
+                        .putIfAbsent(npmPackage.id() + "#" + npmPackage.version(), npmPackage);
+            }
+            for (var factory : factories) {
+                if (factories.size() > 1) {
+                    factory.setContextPackages(List.copyOf(contexts.get(FhirVersionEnum.forVersionString(factory.getNpmPackage().fhirVersion())).values()));
+                }
+                factory.produceCodeGenerator().generate();
+            }
         } catch (Exception e) {
             throw new MojoExecutionException("Failed to generate code", e);
         }
     }
 
+    /**
+     * @param reportSuffix Distinguishes the report of the package when several are generated, or null
+     */
+    private CodeGeneratorFactory configure(CodeGeneratorFactory factory, String reportSuffix) {
+        factory.setThreads(threads);
+        factory.setIncremental(incremental);
+        factory.setReproducible(reproducible);
+        factory.setSnapshotCache(snapshotCache ? ContextBuilder.defaultSnapshotCache() : null);
+        factory.setRefreshSnapshot(refreshSnapshot);
+        factory.setLazyContext(lazyContext);
+        factory.setExpansionCache(expansionCache ? ValueSetExpansionCache.defaultDirectory() : null);
+        factory.setSharedEnums(sharedEnums);
+        factory.setDirectMode(directMode);
+        factory.setLazyLoad(lazyLoad);
+        factory.setDirtyTracking(dirtyTracking);
+        factory.setJsonCodec(jsonCodec);
+        factory.setValidation(validation);
+        factory.setMaxEnumCodes(maxEnumCodes);
+        factory.setDependencies(dependencies);
+        factory.setReportFile(reportFile(reportSuffix));
+        factory.setSlowestProfiles(slowestProfiles);
+        return factory;
+    }
+
+    private Path reportFile(String suffix) {
+        if (report == null || report.isBlank()) {
+            return null;
+        }
+        if (suffix == null) {
+            return Path.of(report);
+        }
+        return report.endsWith(".json") ? Path.of(report.substring(0, report.length() - 5) + "-" + suffix + ".json") : Path.of(report + "-" + suffix);
+    }
+
+    /**
+     * @return A Java package name derived from a FHIR package id, e.g. hl7.fhir.uv.ips.r4 for hl7.fhir.uv.ips-r4
+     */
+    static String javaPackage(String id) {
+        return Arrays.stream(id.toLowerCase().split("[^a-z0-9_]+"))
+                .filter(segment -> !segment.isEmpty())
+                .map(segment -> Character.isDigit(segment.charAt(0)) || SourceVersion.isKeyword(segment) ? "_" + segment : segment)
+                .collect(Collectors.joining("."));
+    }
+
 }
@@ -1,10 +1,7 @@
 package org.hl7.fhir.contrib;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
-import ca.uhn.fhir.jpa.packages.loader.PackageLoaderSvc;
 import com.google.common.base.Strings;
-import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
 import org.hl7.fhir.utilities.npm.NpmPackage;
 import org.jetbrains.annotations.NotNull;
@@ -12,12 +9,24 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 public class CodeGeneratorFactory {
@@ -29,6 +38,27 @@ public class CodeGeneratorFactory {
     private final FhirVersionEnum fhirVersion;
     private final NpmPackage npmPackage;
     private final @NotNull String outputFolder;
+    private final ContextRegistry registry;
+    private List<NpmPackage> contextPackages;
+    private List<NpmPackage> resolvedContextPackages;
+    private boolean dependencies = true;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean incremental = true;
+    private boolean reproducible;
+    private Path snapshotCache = ContextBuilder.defaultSnapshotCache();
+    private boolean refreshSnapshot;
+    private boolean lazyContext;
+    private Path expansionCache = ValueSetExpansionCache.defaultDirectory();
+    private boolean sharedEnums;
+    private boolean directMode;
+    private boolean lazyLoad;
+    private boolean dirtyTracking;
+    private boolean jsonCodec;
+    private boolean validation;
+    private int maxEnumCodes = org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator.DEFAULT_MAX_ENUM_CODES;
+    private final GenerationReport report = new GenerationReport();
+    private Path reportFile;
+    private int slowestProfiles = 10;
 
     /**
      * @param packageId    The package id to generate code from
@@ -38,50 +68,338 @@ public class CodeGeneratorFactory {
      * @throws Exception if any
      */
     public CodeGeneratorFactory(@NotNull String packageId, @NotNull String outputFolder, @NotNull String packageName, @Nullable Set<String> profiles) throws Exception {
+        this(packageId, outputFolder, packageName, profiles, ProfileFilter.ALL);
+    }
 
-        this.npmPackage = validatePackage(packageId);
-        var fhirContext = new FhirContext(FhirVersionEnum.forVersionString(npmPackage.fhirVersion()));
+    /**
+     * @param packageId    The package id to generate code from
+     * @param outputFolder The output folder for the generated code
+     * @param packageName  The package name for the generated code
+     * @param profiles     The profiles to generate code for
+     * @param filter       Selects the StructureDefinitions to generate code for when no profiles are given
+     * @throws Exception if any
+     */
+    public CodeGeneratorFactory(@NotNull String packageId, @NotNull String outputFolder, @NotNull String packageName, @Nullable Set<String> profiles, @NotNull ProfileFilter filter) throws Exception {
+        this(packageId, outputFolder, packageName, profiles, filter, ContextRegistry.forSession(null));
+    }
+
+    /**
+     * @param packageId    The package id to generate code from
+     * @param outputFolder The output folder for the generated code
+     * @param packageName  The package name for the generated code
+     * @param profiles     The profiles to generate code for
+     * @param filter       Selects the StructureDefinitions to generate code for when no profiles are given
+     * @param registry     Shares the package, worker context and ValueSet expansions with other executions of the build
+     * @throws Exception if any
+     */
+    public CodeGeneratorFactory(@NotNull String packageId, @NotNull String outputFolder, @NotNull String packageName, @Nullable Set<String> profiles, @NotNull ProfileFilter filter, @NotNull ContextRegistry registry) throws Exception {
+
+        this.registry = registry;
+        try (var phase = report.begin("validatePackage")) {
+            this.npmPackage = registry.fetchPackage(packageId, CodeGeneratorFactory::validatePackage);
+        }
 
         this.packageName = packageName;
         this.outputFolder = outputFolder;
 
         if (profiles == null || profiles.isEmpty()) {
-
-            var fhirPath = fhirContext.newFhirPath();
-            var parsedExpression = fhirPath.parse("url");
-            var folder = npmPackage.getFolders().get("package");
-            var structureDefs = folder.getTypes().get("StructureDefinition");
-            this.profilesWhitelist = structureDefs.stream().map(sd -> {
-                try {
-                    return folder.fetchFile(sd);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }).map(bytes -> fhirContext.newJsonParser().setSuppressNarratives(true).parseResource(new String(bytes))).map(b -> (String) fhirPath.evaluate(b, parsedExpression, IPrimitiveType.class).get(0).getValue()).collect(Collectors.toUnmodifiableSet());
-
+            try (var phase = report.begin("discoverProfiles")) {
+                this.profilesWhitelist = discoverProfiles(npmPackage, filter);
+            }
         } else {
             this.profilesWhitelist = Set.copyOf(profiles);
         }
 
-        fhirVersion = fhirContext.getVersion().getVersion();
+        fhirVersion = FhirVersionEnum.forVersionString(npmPackage.fhirVersion());
 
         Path path = Path.of(outputFolder, packageName.replaceAll("\\.", "/"));
 
-        if (!Files.exists(path)) Files.createDirectories(path);
+        // another execution of a parallel build may be creating the same folders
+        Files.createDirectories(path);
         this.path = path;
 
     }
 
+    /**
+     * Finds the canonical URLs of the StructureDefinitions in the package accepted by the filter. The files are only scanned
+     * for a few top level properties, never parsed into resources.
+     */
+    static Set<String> discoverProfiles(NpmPackage npmPackage, ProfileFilter filter) throws IOException {
+        var folder = npmPackage.getFolders().get("package");
+        Set<String> canonicals = new TreeSet<>();
+        for (var file : folder.getTypes().getOrDefault("StructureDefinition", List.of())) {
+            var summary = ResourceScanner.summarise(folder.fetchFile(file));
+            if (summary != null && filter.accepts(summary)) {
+                canonicals.add(summary.url());
+            }
+        }
+        logger.info("Discovered {} profiles in {}#{}", canonicals.size(), npmPackage.id(), npmPackage.version());
+        return Collections.unmodifiableSet(canonicals);
+    }
+
     public static NpmPackage validatePackage(String packagePath) throws IOException {
 
         var packageManager = new FilesystemPackageCacheManager.Builder().build();
-        if (!Strings.isNullOrEmpty(packagePath) && !packagePath.startsWith("http:") && !packagePath.startsWith("https:") && !packagePath.startsWith("classpath:") && !packagePath.startsWith("file:") && !packagePath.startsWith("/"))
-            return packageManager.loadPackage(packagePath);
+        if (!Strings.isNullOrEmpty(packagePath) && !packagePath.startsWith("http:") && !packagePath.startsWith("https:") && !packagePath.startsWith("classpath:") && !packagePath.startsWith("file:") && !packagePath.startsWith("/")) {
+            // the package manager downloads and installs missing packages, which concurrent builds must not do at once
+            try (var lock = PackageCacheLock.acquire(packagePath)) {
+                return packageManager.loadPackage(packagePath);
+            }
+        }
+
+        return new PackageFetcher(packageManager, PackageFetcher.defaultStateDirectory()).fetch(packagePath);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads The number of profiles to generate concurrently. All threads share the same worker context
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @param incremental Whether to skip profiles whose input is unchanged since the previous run into the same folder
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isReproducible() {
+        return reproducible;
+    }
+
+    /**
+     * @param reproducible Whether to stamp the generated classes with the package id#version instead of the time of generation,
+     *                     so that identical input always produces byte identical output
+     */
+    public void setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+    }
+
+    public Path getSnapshotCache() {
+        return snapshotCache;
+    }
+
+    /**
+     * @param snapshotCache The directory to keep pre-parsed snapshots of the loaded contexts in, or null to always parse their
+     *                      resources. R4 snapshots hold the core definitions and the packages, R5 snapshots only the core
+     *                      definitions. Lazy contexts don't use them
+     */
+    public void setSnapshotCache(Path snapshotCache) {
+        this.snapshotCache = snapshotCache;
+    }
+
+    public boolean isRefreshSnapshot() {
+        return refreshSnapshot;
+    }
+
+    /**
+     * @param refreshSnapshot Whether to discard the snapshot of the context and build a new one
+     */
+    public void setRefreshSnapshot(boolean refreshSnapshot) {
+        this.refreshSnapshot = refreshSnapshot;
+    }
+
+    public boolean isLazyContext() {
+        return lazyContext;
+    }
+
+    /**
+     * @param lazyContext Whether the R4 worker context should only load conformance resources when they are first needed
+     */
+    public void setLazyContext(boolean lazyContext) {
+        this.lazyContext = lazyContext;
+    }
+
+    public Path getExpansionCache() {
+        return expansionCache;
+    }
+
+    /**
+     * @param expansionCache The directory to persist the ValueSet expansions of R4 packages in between runs, or null to only
+     *                       share them within a run
+     */
+    public void setExpansionCache(Path expansionCache) {
+        this.expansionCache = expansionCache;
+    }
+
+    public boolean isSharedEnums() {
+        return sharedEnums;
+    }
+
+    /**
+     * @param sharedEnums Whether to generate each bound ValueSet once, as a top-level enum in the valuesets subpackage, instead
+     *                    of nesting a copy in every class that uses it. Only supported for R4 packages
+     */
+    public void setSharedEnums(boolean sharedEnums) {
+        this.sharedEnums = sharedEnums;
+    }
+
+    public boolean isDirectMode() {
+        return directMode;
+    }
+
+    /**
+     * @param directMode Whether generated resource classes should load and save their elements through plain HAPI model calls
+     *                   resolved at generation time, only falling back to the profile model for the elements that need it.
+     *                   Only supported for R4 packages
+     */
+    public void setDirectMode(boolean directMode) {
+        this.directMode = directMode;
+    }
+
+    public boolean isLazyLoad() {
+        return lazyLoad;
+    }
+
+    /**
+     * @param lazyLoad Whether generated classes should only load each element from their source when it is first accessed,
+     *                 instead of all of them when loaded. Only supported for R4 packages
+     */
+    public void setLazyLoad(boolean lazyLoad) {
+        this.lazyLoad = lazyLoad;
+    }
+
+    public boolean isDirtyTracking() {
+        return dirtyTracking;
+    }
+
+    /**
+     * @param dirtyTracking Whether generated classes should record their modifications, so that saving into the resource
+     *                      they were loaded from, or building from it, only writes the modified elements. Only supported
+     *                      for R4 packages
+     */
+    public void setDirtyTracking(boolean dirtyTracking) {
+        this.dirtyTracking = dirtyTracking;
+    }
+
+    public boolean isJsonCodec() {
+        return jsonCodec;
+    }
+
+    /**
+     * @param jsonCodec Whether generated resource classes should write and read their FHIR JSON directly with Jackson,
+     *                  instead of through build() and the HAPI parser. Only supported for R4 packages
+     */
+    public void setJsonCodec(boolean jsonCodec) {
+        this.jsonCodec = jsonCodec;
+    }
+
+    public boolean isValidation() {
+        return validation;
+    }
+
+    /**
+     * @param validation Whether generated classes should have a validate() method, which checks cardinalities, fixed
+     *                   values and required bindings without the instance validator. Only supported for R4 packages
+     */
+    public void setValidation(boolean validation) {
+        this.validation = validation;
+    }
+
+    public int getMaxEnumCodes() {
+        return maxEnumCodes;
+    }
+
+    /**
+     * @param maxEnumCodes The most codes the expansion of a required binding can have to be generated as an enum, instead
+     *                     of a plain code. Only used for R4 packages
+     */
+    public void setMaxEnumCodes(int maxEnumCodes) {
+        this.maxEnumCodes = maxEnumCodes;
+    }
+
+    public NpmPackage getNpmPackage() {
+        return npmPackage;
+    }
+
+    /**
+     * @return The packages loaded into the worker context: the one generated from, unless set otherwise
+     */
+    public List<NpmPackage> getContextPackages() {
+        return contextPackages == null ? List.of(npmPackage) : contextPackages;
+    }
+
+    /**
+     * @param contextPackages The packages to load into the worker context, in order. Must include the package generated from.
+     *                        Factories given the same packages share one context through the registry
+     */
+    public void setContextPackages(List<NpmPackage> contextPackages) {
+        if (contextPackages != null && contextPackages.stream().noneMatch(p -> p.id().equals(npmPackage.id()) && p.version().equals(npmPackage.version()))) {
+            throw new IllegalArgumentException("The context packages must include " + npmPackage.id() + "#" + npmPackage.version());
+        }
+        this.contextPackages = contextPackages == null ? null : List.copyOf(contextPackages);
+        this.resolvedContextPackages = null;
+    }
+
+    public boolean isDependencies() {
+        return dependencies;
+    }
 
-        var npmAsBytes = new PackageLoaderSvc().loadPackageUrlContents(packagePath);
-        var npmPackage = NpmPackage.fromPackage(new ByteArrayInputStream(npmAsBytes));
-        packageManager.addPackageToCache(npmPackage.id(), npmPackage.version(), new ByteArrayInputStream(npmAsBytes), npmPackage.description());
-        return packageManager.loadPackage(npmPackage.id() + "#" + npmPackage.version());
+    /**
+     * @param dependencies Whether to resolve the dependencies of the packages, transitively, and load them into the worker
+     *                     context, so that profiles deriving from profiles in other IGs can be generated
+     */
+    public void setDependencies(boolean dependencies) {
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * @return The context packages, followed by their dependencies if those are to be loaded too. Resolved once, as both the
+     * fingerprints and the context depend on them
+     */
+    private List<NpmPackage> resolveContextPackages() {
+        if (resolvedContextPackages == null) {
+            if (!dependencies) {
+                resolvedContextPackages = getContextPackages();
+            } else {
+                try (var phase = report.begin("resolveDependencies")) {
+                    resolvedContextPackages = new DependencyResolver(registry, threads).resolve(getContextPackages());
+                }
+            }
+        }
+        return resolvedContextPackages;
+    }
+
+    /**
+     * @return The timings and allocations of the run so far
+     */
+    public GenerationReport getReport() {
+        return report;
+    }
+
+    public Path getReportFile() {
+        return reportFile;
+    }
+
+    /**
+     * @param reportFile Where to write the timings and allocations of the run as JSON once it is done, or null to only log
+     *                   their summary
+     */
+    public void setReportFile(Path reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    public int getSlowestProfiles() {
+        return slowestProfiles;
+    }
+
+    /**
+     * @param slowestProfiles The number of slowest profiles to name in the logged summary
+     */
+    public void setSlowestProfiles(int slowestProfiles) {
+        this.slowestProfiles = slowestProfiles;
     }
 
     public PECodeGenerator produceCodeGenerator() throws Exception {
@@ -98,65 +416,328 @@ public class CodeGeneratorFactory {
         private final String date;
 
         public PECodeGenerator(Set<String> canonicals) {
-            this.profilesWhitelist = canonicals;
-            this.date = new Date().toString();
+            this.profilesWhitelist = new TreeSet<>(canonicals);
+            this.date = reproducible ? npmPackage.id() + "#" + npmPackage.version() : new Date().toString();
         }
 
         /**
-         * Generate code for the profiles in the whitelist
+         * Generate code for the profiles in the whitelist, fanning the profiles out over at most {@link #getThreads()} threads.
+         * When running incrementally, profiles that are unchanged since the previous run are skipped - and if none changed,
+         * the worker context isn't even built.
          */
-        public void generate() {
+        public void generate() throws IOException {
+
+            GenerationManifest manifest = incremental ? GenerationManifest.load(path) : null;
+            ProfileFingerprints fingerprints = incremental ? new ProfileFingerprints(npmPackage, resolveContextPackages(), generatorOptions() + ";core=" + ContextBuilder.definitionsHash(fhirVersion.name().toLowerCase())) : null;
+            Map<String, String> pending = new LinkedHashMap<>();
+            try (var phase = report.begin("fingerprint")) {
+                for (var canonicalUrl : profilesWhitelist) {
+                    String fingerprint = fingerprints == null ? null : fingerprints.fingerprint(canonicalUrl);
+                    if (manifest != null && manifest.isUpToDate(canonicalUrl, fingerprint)) {
+                        manifest.keep(canonicalUrl);
+                    } else {
+                        pending.put(canonicalUrl, fingerprint);
+                    }
+                }
+            }
+
+            if (pending.isEmpty()) {
+                logger.info("All {} profiles are up to date, skipping code generation.", profilesWhitelist.size());
+                if (manifest != null) {
+                    saveManifest(manifest);
+                }
+                report();
+                return;
+            }
+
+            int concurrency = Math.min(concurrency(), pending.size());
+            logger.info("Starting code generation on {} of {} profiles using {} threads ...", pending.size(), profilesWhitelist.size(), concurrency);
+            logger.info("validator cli equivalent: java -jar validator_cli.jar -codegen -version {} -ig {}#{} -output {} -package-name {} -profiles {}", FhirVersionEnum.forVersionString(npmPackage.fhirVersion()), npmPackage.id(), npmPackage.version(), outputFolder, packageName, pending.keySet().stream().map(e -> e.replace("/StructureDefinition/", "/StructureDefinition/")).collect(Collectors.joining(",")));
+
+            try (var phase = report.begin("contextBuild")) {
+                prepare();
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+            Map<String, Throwable> errors = new LinkedHashMap<>();
+            try {
+                Map<String, Future<Void>> tasks = new LinkedHashMap<>();
+                for (var profile : pending.entrySet()) {
+                    tasks.put(profile.getKey(), executor.submit(() -> {
+                        logger.info("Generating code for profile: {}", profile.getKey());
+                        String file;
+                        try (var phase = report.profile(profile.getKey())) {
+                            file = generateCode(profile.getKey(), date);
+                        }
+                        if (manifest != null) {
+                            manifest.record(profile.getKey(), file, profile.getValue());
+                        }
+                        return null;
+                    }));
+                }
+                for (var task : tasks.entrySet()) {
+                    try {
+                        task.getValue().get();
+                    } catch (ExecutionException e) {
+                        errors.put(task.getKey(), e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                // the cancelled profiles must neither count as generated nor be recorded in the manifest
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Code generation was interrupted");
+            } finally {
+                executor.shutdownNow();
+            }
 
-            logger.info("Starting code generation on {} profiles ...", profilesWhitelist.size());
-            logger.info("validator cli equivalent: java -jar validator_cli.jar -codegen -version {} -ig {}#{} -output {} -package-name {} -profiles {}", FhirVersionEnum.forVersionString(npmPackage.fhirVersion()), npmPackage.id(), npmPackage.version(), outputFolder, packageName, profilesWhitelist.stream().map(e -> e.replace("/StructureDefinition/", "/StructureDefinition/")).collect(Collectors.joining(",")));
+            try (var phase = report.begin("saveCaches")) {
+                finish();
+            }
+
+            if (manifest != null) {
+                saveManifest(manifest);
+            }
+            report();
+
+            errors.forEach((canonicalUrl, e) -> logger.error("Error generating code for profile: {}", canonicalUrl, e));
+            if (errors.isEmpty()) {
+                logger.info("Code generation completed.");
+            } else {
+                logger.info("Code generation completed with errors in {} of {} profiles.", errors.size(), pending.size());
+            }
+
+        }
 
-            for (var canonicalUrl : profilesWhitelist) {
-                logger.info("Generating code for profile: {}", canonicalUrl);
-                try {
-                    generateCode(canonicalUrl, date);
-                } catch (Exception e) {
-                    logger.error("Error generating code for profile: {}", canonicalUrl, e);
+        /**
+         * Deletes the classes of profiles no longer generated, and records the files shared by the generated classes
+         */
+        private void saveManifest(GenerationManifest manifest) throws IOException {
+            manifest.prune(profilesWhitelist);
+            List<String> shared = new ArrayList<>();
+            if (Files.exists(path.resolve(org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator.SUPPORT_CLASS + ".java"))) {
+                shared.add(org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator.SUPPORT_CLASS + ".java");
+            }
+            Path enums = path.resolve(org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator.SharedEnums.PACKAGE);
+            if (Files.isDirectory(enums)) {
+                try (var files = Files.list(enums)) {
+                    files.map(f -> f.getFileName().toString()).filter(f -> f.endsWith(".java")).forEach(f -> shared.add(enums.getFileName() + "/" + f));
                 }
             }
+            manifest.recordShared(shared);
+            manifest.save();
+        }
+
+        private void report() throws IOException {
+            report.logSummary(slowestProfiles);
+            if (reportFile != null) {
+                report.write(reportFile);
+            }
+        }
+
+        /**
+         * @return The number of profiles to generate concurrently over the worker context
+         */
+        protected int concurrency() {
+            return threads;
+        }
 
-            logger.info("Code generation completed.");
+        /**
+         * Builds the worker context. Only called when there is something to generate
+         */
+        abstract protected void prepare() throws IOException;
 
+        /**
+         * Called once all profiles are generated, to persist and report whatever was shared between them
+         */
+        protected void finish() throws IOException {
         }
 
-        abstract protected void generateCode(String canonicalUrl, String date) throws IOException;
+        /**
+         * @return The name of the generated file
+         */
+        abstract protected String generateCode(String canonicalUrl, String date) throws IOException;
     }
 
     class R4PECodeGenerator extends PECodeGenerator {
 
-        private final org.hl7.fhir.r4.context.SimpleWorkerContext workerContext;
+        private final NpmPackage npmPackage;
+        private org.hl7.fhir.r4.context.SimpleWorkerContext workerContext;
+        private ValueSetExpansionCache expansions;
+        private org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator.SharedEnums enums;
+        private final Set<String> profiles;
 
-        R4PECodeGenerator(NpmPackage npmPackage, Set<String> profilesWhitelist) throws Exception {
+        R4PECodeGenerator(NpmPackage npmPackage, Set<String> profilesWhitelist) {
             super(profilesWhitelist);
-            this.workerContext = ContextBuilder.usingR4(npmPackage).build();
+            this.npmPackage = npmPackage;
+            this.profiles = profilesWhitelist;
+        }
+
+        @Override
+        protected void prepare() throws IOException {
+            List<NpmPackage> npmPackages = resolveContextPackages();
+            this.workerContext = registry.context("r4", npmPackages, lazyContext ? "lazy" : "eager", () -> ContextBuilder.usingR4(npmPackages).lazy(lazyContext).withLoaderThreads(threads).withSnapshotCache(snapshotCache).refreshSnapshot(refreshSnapshot).build());
+            if (expansionCache == null) {
+                this.expansions = registry.expansions(expansionKey(), ValueSetExpansionCache::inMemory);
+            } else {
+                Path file = expansionCache.resolve(expansionFileName());
+                this.expansions = registry.expansions(file.toString(), () -> ValueSetExpansionCache.load(file));
+            }
+            this.enums = sharedEnums ? new org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator.SharedEnums(path.toString()) : null;
+            if (enums != null) {
+                // named up front, as the generators would otherwise name colliding ValueSets in the order they reach them
+                synchronized (workerContext) {
+                    enums.reserve(workerContext, profiles);
+                }
+            }
+            // all classes in the output folder share the support class, so it is written once rather than by each generator
+            var codeGenerator = produceR4PeCodeGenerator(null, null, workerContext);
+            codeGenerator.setProfiler(report);
+            codeGenerator.writeSupportClass();
         }
 
         @Override
-        public void generateCode(String canonicalUrl, String date) throws IOException {
-            produceR4PeCodeGenerator(canonicalUrl, date, workerContext).execute();
+        protected int concurrency() {
+            if (lazyContext && threads > 1) {
+                logger.info("The lazy worker context isn't thread safe, generating one profile at a time");
+                return 1;
+            }
+            return threads;
+        }
+
+        @Override
+        public String generateCode(String canonicalUrl, String date) throws IOException {
+            if (workerContext instanceof LazyR4WorkerContext) {
+                // the context is shared with other executions of a parallel build through the registry
+                synchronized (workerContext) {
+                    return generate(canonicalUrl, date);
+                }
+            }
+            return generate(canonicalUrl, date);
+        }
+
+        private String generate(String canonicalUrl, String date) throws IOException {
+            var codeGenerator = produceR4PeCodeGenerator(canonicalUrl, date, workerContext);
+            codeGenerator.setExpansionProvider(expansions);
+            codeGenerator.setSharedEnums(enums);
+            codeGenerator.setProfiler(report);
+            return codeGenerator.execute();
+        }
+
+        @Override
+        protected void finish() throws IOException {
+            expansions.logStatistics();
+            expansions.save();
+        }
+
+        /**
+         * The expansions depend on the packages in the context and on the terminology code of the plugin's dependencies. All
+         * factories sharing a context share the file
+         */
+        private String expansionFileName() throws IOException {
+            NpmPackage first = getContextPackages().get(0);
+            return first.id() + "#" + first.version() + "-" + ProfileFingerprints.sha256(expansionKey().getBytes(StandardCharsets.UTF_8)).substring(0, 16) + ".json";
+        }
+
+        /**
+         * @return The id, version and content hash of every package in the context, dependencies included, as a ValueSet may
+         * include codes from any of them
+         */
+        private String expansionKey() throws IOException {
+            StringBuilder b = new StringBuilder();
+            for (NpmPackage p : resolveContextPackages()) {
+                b.append(p.id()).append('#').append(p.version()).append('=').append(ProfileFingerprints.contentHash(p)).append(',');
+            }
+            return b.append(GenerationManifest.pluginVersion()).toString();
         }
     }
 
     class R5PECodeGenerator extends PECodeGenerator {
 
-        private final org.hl7.fhir.r5.context.SimpleWorkerContext workerContext;
+        private final NpmPackage npmPackage;
+        private org.hl7.fhir.r5.context.SimpleWorkerContext workerContext;
 
 
-        R5PECodeGenerator(NpmPackage npmPackage, Set<String> profilesWhitelist) throws IOException {
+        R5PECodeGenerator(NpmPackage npmPackage, Set<String> profilesWhitelist) {
             super(profilesWhitelist);
-            workerContext = ContextBuilder.usingR5(npmPackage).build();
+            this.npmPackage = npmPackage;
         }
 
         @Override
-        public void generateCode(String canonicalUrl, String date) throws IOException {
-            produceR5PeCodeGenerator(canonicalUrl, date, workerContext).execute();
+        protected void prepare() {
+            if (sharedEnums) {
+                logger.warn("Shared enums are only supported for R4 packages, nesting the enums in each class instead");
+            }
+            if (directMode) {
+                logger.warn("Direct mode is only supported for R4 packages, generating profile model code instead");
+            }
+            if (lazyLoad) {
+                logger.warn("Lazy loading is only supported for R4 packages, loading all elements eagerly instead");
+            }
+            if (dirtyTracking) {
+                logger.warn("Dirty tracking is only supported for R4 packages, saving all elements instead");
+            }
+            if (jsonCodec) {
+                logger.warn("The JSON codec is only supported for R4 packages, use the HAPI parser instead");
+            }
+            if (validation) {
+                logger.warn("Generated validation is only supported for R4 packages, use the instance validator instead");
+            }
+            List<NpmPackage> npmPackages = resolveContextPackages();
+            workerContext = registry.context("r5", npmPackages, "", () -> ContextBuilder.usingR5(npmPackages).withLoaderThreads(threads).withSnapshotCache(snapshotCache).refreshSnapshot(refreshSnapshot).build());
+        }
+
+        @Override
+        public String generateCode(String canonicalUrl, String date) throws IOException {
+            // the R5 generator always writes its output, so stage it and only replace files that actually changed
+            Path staging = Files.createTempDirectory("fhir-codegen");
+            try {
+                var codeGenerator = produceR5PeCodeGenerator(canonicalUrl, date, workerContext);
+                codeGenerator.setFolder(staging.toString());
+                String file = codeGenerator.execute();
+                try (var phase = report.begin("write")) {
+                    moveIfChanged(staging.resolve(file), path.resolve(file));
+                }
+                return file;
+            } finally {
+                try (var files = Files.list(staging)) {
+                    for (var file : files.toList()) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+                Files.deleteIfExists(staging);
+            }
+        }
+    }
+
+    /**
+     * Moves a generated file into place, unless the target already has the same content - in which case the target is left
+     * untouched so that its modification time doesn't trigger recompilation
+     */
+    private static void moveIfChanged(Path generated, Path target) throws IOException {
+        if (Files.exists(target) && Files.mismatch(generated, target) == -1) {
+            Files.delete(generated);
+        } else {
+            Files.move(generated, target, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
+    /**
+     * @return The id#version of every package in the context, dependencies included
+     */
+    private String contextIds() {
+        return resolveContextPackages().stream().map(p -> p.id() + "#" + p.version()).collect(Collectors.joining(","));
+    }
+
+    /**
+     * @return A description of everything besides the package content that affects the generated code
+     */
+    private String generatorOptions() {
+        return String.join(";", "plugin=" + GenerationManifest.pluginVersion(), "fhirVersion=" + fhirVersion, "packageName=" + packageName, "context=" + contextIds(),
+                "extensionPolicy=Complexes", "narrative=true", "meta=true", "language=null", "keyElementsOnly=true", "reproducible=" + reproducible,
+                "sharedEnums=" + sharedEnums, "directMode=" + directMode, "lazyLoad=" + lazyLoad, "dirtyTracking=" + dirtyTracking, "jsonCodec=" + jsonCodec, "validation=" + validation,
+                "maxEnumCodes=" + maxEnumCodes, "dependencies=" + dependencies);
+    }
+
     private @NotNull org.hl7.fhir.r5.profilemodel.gen.PECodeGenerator produceR5PeCodeGenerator(String canonicalUrl, String date, org.hl7.fhir.r5.context.IWorkerContext workerContext) {
         org.hl7.fhir.r5.profilemodel.gen.PECodeGenerator codeGenerator = new org.hl7.fhir.r5.profilemodel.gen.PECodeGenerator(workerContext);
         codeGenerator.setFolder(path.toString());
@@ -184,6 +765,13 @@ public class CodeGeneratorFactory {
         codeGenerator.setKeyElementsOnly(true);
         codeGenerator.setGenDate(date);
         codeGenerator.setVersion("r4");
+        codeGenerator.setDirect(directMode);
+        codeGenerator.setLazyLoad(lazyLoad);
+        codeGenerator.setDirtyTracking(dirtyTracking);
+        codeGenerator.setJsonCodec(jsonCodec);
+        codeGenerator.setValidation(validation);
+        codeGenerator.setMaxEnumCodes(maxEnumCodes);
+        codeGenerator.setSupportClass(false);
         return codeGenerator;
     }
 }
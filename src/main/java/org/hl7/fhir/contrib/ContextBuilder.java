@@ -9,105 +9,349 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.DefaultResourceLoader;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class ContextBuilder {
 
     private static final Logger logger = LoggerFactory.getLogger(ContextBuilder.class);
+    private static final Map<String, String> DEFINITIONS_HASHES = new ConcurrentHashMap<>();
+    private static final List<String> PACKAGE_TYPES = List.of("CodeSystem", "ValueSet", "ConceptMap", "NamingSystem", "StructureDefinition", "SearchParameter", "OperationDefinition", "CapabilityStatement");
 
     private ContextBuilder() {
 
     }
 
     public static R4ContextBuilder usingR4(NpmPackage npmPackage) {
-        if (FhirVersionEnum.forVersionString(npmPackage.fhirVersion()) != FhirVersionEnum.R4) {
-            throw new IllegalArgumentException("NpmPackage is not for FHIR R4");
-        }
-        try {
-            return new R4ContextBuilder(npmPackage);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        return usingR4(List.of(npmPackage));
+    }
+
+    /**
+     * @param npmPackages The packages to load into one context. The context is created from the first, the conformance
+     *                    resources of the others are added to it
+     */
+    public static R4ContextBuilder usingR4(List<NpmPackage> npmPackages) {
+        for (var npmPackage : npmPackages) {
+            if (FhirVersionEnum.forVersionString(npmPackage.fhirVersion()) != FhirVersionEnum.R4) {
+                throw new IllegalArgumentException("NpmPackage " + npmPackage.id() + "#" + npmPackage.version() + " is not for FHIR R4");
+            }
         }
+        return new R4ContextBuilder(npmPackages);
     }
 
     public static R5ContextBuilder usingR5(NpmPackage npmPackage) {
-        if (FhirVersionEnum.forVersionString(npmPackage.fhirVersion()) != FhirVersionEnum.R5) {
-            throw new IllegalArgumentException("NpmPackage is not for FHIR R5");
+        return usingR5(List.of(npmPackage));
+    }
+
+    /**
+     * @param npmPackages The packages to load into one context. The context is created from the first, the conformance
+     *                    resources of the others are added to it
+     */
+    public static R5ContextBuilder usingR5(List<NpmPackage> npmPackages) {
+        for (var npmPackage : npmPackages) {
+            if (FhirVersionEnum.forVersionString(npmPackage.fhirVersion()) != FhirVersionEnum.R5) {
+                throw new IllegalArgumentException("NpmPackage " + npmPackage.id() + "#" + npmPackage.version() + " is not for FHIR R5");
+            }
         }
+        return new R5ContextBuilder(npmPackages);
+    }
+
+    /**
+     * @return The default location of the definition snapshots, next to the packages in the FHIR package cache
+     */
+    public static Path defaultSnapshotCache() {
+        return Path.of(System.getProperty("user.home"), ".fhir", "packages", "codegen-snapshots");
+    }
+
+    /**
+     * @param fhirVersion The FHIR version, e.g. r4
+     * @return A hash of the core definitions on the class path the contexts of the FHIR version are built from, so that
+     * anything derived from them can tell when they change - even when the plugin version doesn't
+     */
+    static String definitionsHash(String fhirVersion) throws IOException {
+        String hash = DEFINITIONS_HASHES.get(fhirVersion);
+        if (hash == null) {
+            hash = ProfileFingerprints.sha256(readDefinitions("classpath:/" + fhirVersion + "/definitions.json.zip"));
+            DEFINITIONS_HASHES.put(fhirVersion, hash);
+        }
+        return hash;
+    }
+
+    private static byte[] readDefinitions(String location) throws IOException {
+        try (InputStream in = new DefaultResourceLoader().getResource(location).getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Adds the conformance resources of the packages besides the one the context was created from. The packages are parsed
+     * concurrently, but handed to the context one at a time and in order, as the context isn't thread safe and the first
+     * package defining a resource wins. Resources the context already holds are skipped, so packages shared by several IGs
+     * are only loaded once.
+     */
+    private static <T> void loadPackages(List<NpmPackage> npmPackages, int threads, Function<InputStream, T> parser, Consumer<T> cache) {
+        List<List<T>> parsed = parsePackages(npmPackages, threads, parser);
+        for (int i = 0; i < npmPackages.size(); i++) {
+            int loaded = 0;
+            for (T resource : parsed.get(i)) {
+                try {
+                    cache.accept(resource);
+                    loaded++;
+                } catch (Exception e) {
+                    logger.debug("Error loading a resource of {}#{}", npmPackages.get(i).id(), npmPackages.get(i).version(), e);
+                }
+            }
+            logger.info("Loaded {} conformance resources from {}#{}", loaded, npmPackages.get(i).id(), npmPackages.get(i).version());
+        }
+    }
+
+    /**
+     * @return The conformance resources of each of the packages, parsed concurrently
+     */
+    private static <T> List<List<T>> parsePackages(List<NpmPackage> npmPackages, int threads, Function<InputStream, T> parser) {
+        if (npmPackages.isEmpty()) {
+            return List.of();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, npmPackages.size()));
         try {
-            return new R5ContextBuilder(npmPackage);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            List<Future<List<T>>> futures = new ArrayList<>();
+            for (var npmPackage : npmPackages) {
+                futures.add(executor.submit(() -> parsePackage(npmPackage, parser)));
+            }
+            List<List<T>> parsed = new ArrayList<>();
+            for (var future : futures) {
+                parsed.add(future.get());
+            }
+            return parsed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading packages", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to load packages", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Initialises an R4 context for the package the way {@link org.hl7.fhir.r4.context.SimpleWorkerContext#fromPackage(NpmPackage)}
+     * does - taking the version from the package, and rejecting duplicate resources so that the first one loaded wins - but
+     * without loading any of the package's resources
+     */
+    static void initialise(org.hl7.fhir.r4.context.SimpleWorkerContext workerContext, NpmPackage npmPackage) throws IOException {
+        workerContext.setAllowLoadingDuplicates(false);
+        // no file has this type, so nothing but the version is taken from the package
+        workerContext.loadFromPackage(npmPackage, null, new String[]{"-"});
+    }
+
+    private static <T> List<T> parsePackage(NpmPackage npmPackage, Function<InputStream, T> parser) throws IOException {
+        var folder = npmPackage.getFolders().get("package");
+        List<T> resources = new ArrayList<>();
+        for (var type : PACKAGE_TYPES) {
+            for (var file : folder.getTypes().getOrDefault(type, List.of())) {
+                try {
+                    resources.add(parser.apply(new ByteArrayInputStream(folder.fetchFile(file))));
+                } catch (Exception e) {
+                    logger.debug("Error parsing {} from {}#{}", file, npmPackage.id(), npmPackage.version(), e);
+                }
+            }
         }
+        return resources;
     }
 
     public static class R5ContextBuilder {
-        private final org.hl7.fhir.r5.context.SimpleWorkerContext workerContext;
+        private final NpmPackage npmPackage;
+        private final List<NpmPackage> additionalPackages;
+        private Path snapshotCache;
+        private boolean refreshSnapshot;
+        private int loaderThreads = Runtime.getRuntime().availableProcessors();
 
-        private R5ContextBuilder(NpmPackage npmPackage) throws IOException {
-            workerContext = new org.hl7.fhir.r5.context.SimpleWorkerContext.SimpleWorkerContextBuilder().fromPackage(npmPackage);
-            workerContext.setExpansionParameters(new org.hl7.fhir.r5.model.Parameters());
+        private R5ContextBuilder(List<NpmPackage> npmPackages) {
+            this.npmPackage = npmPackages.get(0);
+            this.additionalPackages = npmPackages.subList(1, npmPackages.size());
+        }
 
-            var parser = FhirContext.forR5().newJsonParser();
-            var zis = new ZipInputStream(new DefaultResourceLoader().getResource("classpath:/r5/definitions.json.zip").getInputStream());
+        /**
+         * @param threads The number of threads parsing the core definitions and the additional packages
+         */
+        public R5ContextBuilder withLoaderThreads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+            }
+            this.loaderThreads = threads;
+            return this;
+        }
+
+        /**
+         * @param directory The directory to keep a pre-parsed snapshot of the core definitions in, or null to always parse them.
+         *                  The packages are parsed on every build
+         */
+        public R5ContextBuilder withSnapshotCache(Path directory) {
+            this.snapshotCache = directory;
+            return this;
+        }
+
+        /**
+         * @param refresh Whether to discard an existing snapshot of the core definitions and build a new one
+         */
+        public R5ContextBuilder refreshSnapshot(boolean refresh) {
+            this.refreshSnapshot = refresh;
+            return this;
+        }
+
+        public org.hl7.fhir.r5.context.SimpleWorkerContext build() {
+            try {
+                var workerContext = new org.hl7.fhir.r5.context.SimpleWorkerContext.SimpleWorkerContextBuilder().fromPackage(npmPackage);
+                workerContext.setExpansionParameters(new org.hl7.fhir.r5.model.Parameters());
 
-            ZipEntry entry;
-            while ((entry = zis.getNextEntry()) != null) {
-                if (entry.getName().endsWith(".json")) {
-                    var resource = (org.hl7.fhir.r5.model.Resource) parser.parseResource(new String(zis.readAllBytes()));
+                for (var resource : loadDefinitions()) {
                     try {
-                        if (resource.getResourceType() == org.hl7.fhir.r5.model.ResourceType.Bundle) {
-                            for (org.hl7.fhir.r5.model.Bundle.BundleEntryComponent e : ((org.hl7.fhir.r5.model.Bundle) resource).getEntry()) {
-                                workerContext.cacheResource(e.getResource());
-                            }
-                        } else {
-                            workerContext.cacheResource(resource);
-                        }
+                        workerContext.cacheResource(resource);
                     } catch (Exception e) {
                         logger.debug("Error loading definitions", e);
                     }
                 }
+                var fhirContext = FhirContext.forR5();
+                loadPackages(additionalPackages, loaderThreads, in -> (org.hl7.fhir.r5.model.Resource) fhirContext.newJsonParser().parseResource(in), workerContext::cacheResource);
+                return workerContext;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
         }
 
-        public org.hl7.fhir.r5.context.SimpleWorkerContext build() {
-            return workerContext;
+        private List<org.hl7.fhir.r5.model.Resource> loadDefinitions() throws IOException {
+            byte[] definitions = readDefinitions("classpath:/r5/definitions.json.zip");
+            var snapshot = snapshotCache == null ? null : DefinitionsSnapshot.of(snapshotCache, "r5", definitions, List.of());
+            if (snapshot != null && !refreshSnapshot) {
+                List<org.hl7.fhir.r5.model.Resource> resources = snapshot.restore();
+                if (resources != null) {
+                    return resources;
+                }
+            }
+
+            var fhirContext = FhirContext.forR5();
+            List<org.hl7.fhir.r5.model.Resource> resources = DefinitionsLoader.load(definitions, loaderThreads, in -> (org.hl7.fhir.r5.model.Resource) fhirContext.newJsonParser().parseResource(in));
+            if (snapshot != null) {
+                snapshot.store(resources);
+            }
+            return resources;
         }
     }
 
     public static class R4ContextBuilder {
-        private final org.hl7.fhir.r4.context.SimpleWorkerContext workerContext;
+        private final NpmPackage npmPackage;
+        private final List<NpmPackage> additionalPackages;
+        private Path snapshotCache;
+        private boolean refreshSnapshot;
+        private int loaderThreads = Runtime.getRuntime().availableProcessors();
+        private boolean lazy;
 
-        private R4ContextBuilder(NpmPackage npmPackage) throws IOException {
-            workerContext = org.hl7.fhir.r4.context.SimpleWorkerContext.fromPackage(npmPackage);
-            workerContext.setExpansionProfile(new org.hl7.fhir.r4.model.Parameters());
+        private R4ContextBuilder(List<NpmPackage> npmPackages) {
+            this.npmPackage = npmPackages.get(0);
+            this.additionalPackages = npmPackages.subList(1, npmPackages.size());
+        }
 
-            var parser = FhirContext.forR4().newJsonParser();
-            var zis = new ZipInputStream(new DefaultResourceLoader().getResource("classpath:/r4/definitions.json.zip").getInputStream());
+        /**
+         * @param lazy Whether to only index the conformance resources, and parse them when they are first asked for (see
+         *             {@link LazyR4WorkerContext}). A lazy context doesn't use the snapshot cache, as restoring a snapshot
+         *             materializes every resource in it
+         */
+        public R4ContextBuilder lazy(boolean lazy) {
+            this.lazy = lazy;
+            return this;
+        }
 
-            ZipEntry entry;
-            while ((entry = zis.getNextEntry()) != null) {
-                if (entry.getName().endsWith(".json")) {
-                    var resource = (org.hl7.fhir.r4.model.Resource) parser.parseResource(new String(zis.readAllBytes()));
+        /**
+         * @param threads The number of threads parsing the core definitions and the additional packages
+         */
+        public R4ContextBuilder withLoaderThreads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+            }
+            this.loaderThreads = threads;
+            return this;
+        }
+
+        /**
+         * @param directory The directory to keep a pre-parsed snapshot of the loaded context - the conformance resources of
+         *                  the packages and the core definitions - in, or null to always parse them
+         */
+        public R4ContextBuilder withSnapshotCache(Path directory) {
+            this.snapshotCache = directory;
+            return this;
+        }
+
+        /**
+         * @param refresh Whether to discard an existing snapshot of the context and build a new one
+         */
+        public R4ContextBuilder refreshSnapshot(boolean refresh) {
+            this.refreshSnapshot = refresh;
+            return this;
+        }
+
+        public org.hl7.fhir.r4.context.SimpleWorkerContext build() {
+            try {
+                List<NpmPackage> npmPackages = new ArrayList<>(List.of(npmPackage));
+                npmPackages.addAll(additionalPackages);
+                if (lazy) {
+                    return LazyR4WorkerContext.create(npmPackages, readDefinitions("classpath:/r4/definitions.json.zip"));
+                }
+                var workerContext = new org.hl7.fhir.r4.context.SimpleWorkerContext();
+                initialise(workerContext, npmPackage);
+                workerContext.setExpansionProfile(new org.hl7.fhir.r4.model.Parameters());
+
+                for (var resource : loadResources(npmPackages)) {
                     try {
-                        if (resource.getResourceType() == org.hl7.fhir.r4.model.ResourceType.Bundle) {
-                            for (org.hl7.fhir.r4.model.Bundle.BundleEntryComponent e : ((org.hl7.fhir.r4.model.Bundle) resource).getEntry()) {
-                                workerContext.cacheResource(e.getResource());
-                            }
-                        } else {
-                            workerContext.cacheResource(resource);
-                        }
+                        workerContext.cacheResource(resource);
                     } catch (Exception e) {
-                        logger.debug("Error loading definitions", e);
+                        logger.debug("Error loading {}", resource.getId(), e);
                     }
                 }
+                return workerContext;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
         }
 
-        public org.hl7.fhir.r4.context.SimpleWorkerContext build() {
-            return workerContext;
+        /**
+         * @return The conformance resources of the first package, the core definitions and the conformance resources of the
+         * other packages, in the order they are loaded into the context - restored from the snapshot if there is one
+         */
+        private List<org.hl7.fhir.r4.model.Resource> loadResources(List<NpmPackage> npmPackages) throws IOException {
+            byte[] definitions = readDefinitions("classpath:/r4/definitions.json.zip");
+            var snapshot = snapshotCache == null ? null : DefinitionsSnapshot.of(snapshotCache, "r4", definitions, npmPackages);
+            if (snapshot != null && !refreshSnapshot) {
+                List<org.hl7.fhir.r4.model.Resource> resources = snapshot.restore();
+                if (resources != null) {
+                    return resources;
+                }
+            }
+
+            var fhirContext = FhirContext.forR4();
+            Function<InputStream, org.hl7.fhir.r4.model.Resource> parser = in -> (org.hl7.fhir.r4.model.Resource) fhirContext.newJsonParser().parseResource(in);
+            List<List<org.hl7.fhir.r4.model.Resource>> packages = parsePackages(npmPackages, loaderThreads, parser);
+            List<org.hl7.fhir.r4.model.Resource> resources = new ArrayList<>(packages.get(0));
+            resources.addAll(DefinitionsLoader.load(definitions, loaderThreads, parser::apply));
+            for (int i = 1; i < packages.size(); i++) {
+                resources.addAll(packages.get(i));
+            }
+            logger.info("Parsed {} conformance resources from {} packages and the core definitions", resources.size(), npmPackages.size());
+            if (snapshot != null) {
+                snapshot.store(resources);
+            }
+            return resources;
         }
     }
 }
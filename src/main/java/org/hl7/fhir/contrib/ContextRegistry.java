@@ -0,0 +1,136 @@
+package org.hl7.fhir.contrib;
+
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Shares fetched packages, worker contexts and ValueSet expansion caches between the executions of a build session, so that
+ * modules generating from the same package don't fetch it and build its context again. Contexts are keyed by FHIR version
+ * and package id#version. The registries are weakly keyed by the execution request of their session, which all modules of
+ * a parallel build share even though each runs with its own clone of the session, so everything they hold is released
+ * with it.
+ */
+public class ContextRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContextRegistry.class);
+    private static final Map<MavenExecutionRequest, ContextRegistry> SESSIONS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Map<String, Future<NpmPackage>> packages = new ConcurrentHashMap<>();
+    private final Map<String, Future<Object>> contexts = new ConcurrentHashMap<>();
+    private final Map<String, Future<ValueSetExpansionCache>> expansions = new ConcurrentHashMap<>();
+
+    /**
+     * @param session The build session, or null for a registry that isn't shared with anyone
+     * @return The registry of the session, shared by all its clones
+     */
+    public static ContextRegistry forSession(MavenSession session) {
+        if (session == null) {
+            return new ContextRegistry();
+        }
+        return SESSIONS.computeIfAbsent(session.getRequest(), r -> new ContextRegistry());
+    }
+
+    /**
+     * @param source  The package id#version, URL or file path
+     * @param fetcher Fetches the package if this registry doesn't hold it yet
+     */
+    public NpmPackage fetchPackage(String source, PackageSource fetcher) throws IOException {
+        return once(packages, source, () -> fetcher.fetch(source));
+    }
+
+    /**
+     * @param fhirVersion The FHIR version of the context
+     * @param npmPackage  The package the context is built for
+     * @param variant     Anything else that changes the context, such as loading it lazily
+     * @param builder     Builds the context if this registry doesn't hold it yet
+     */
+    public <T> T context(String fhirVersion, NpmPackage npmPackage, String variant, Supplier<T> builder) {
+        return context(fhirVersion, List.of(npmPackage), variant, builder);
+    }
+
+    /**
+     * @param fhirVersion The FHIR version of the context
+     * @param npmPackages The packages the context is built for, in the order they are loaded
+     * @param variant     Anything else that changes the context, such as loading it lazily
+     * @param builder     Builds the context if this registry doesn't hold it yet
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T context(String fhirVersion, List<NpmPackage> npmPackages, String variant, Supplier<T> builder) {
+        String ids = npmPackages.stream().map(p -> p.id() + "#" + p.version()).collect(Collectors.joining(","));
+        String key = fhirVersion + "|" + ids + "|" + variant;
+        if (contexts.containsKey(key)) {
+            logger.info("Reusing the worker context of {} from this build", ids);
+        }
+        try {
+            return (T) once(contexts, key, builder::get);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param key    The file the expansions are persisted in, or anything else identifying the package and version
+     * @param loader Loads the expansions if this registry doesn't hold them yet
+     */
+    public ValueSetExpansionCache expansions(String key, Supplier<ValueSetExpansionCache> loader) {
+        try {
+            return once(expansions, key, loader::get);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Loads the value of the key once. The load runs on the first caller's thread outside of any lock of the map, and
+     * later callers of the same key wait for it rather than loading it again. A failed load isn't kept, so the next
+     * caller tries again
+     */
+    private static <T> T once(Map<String, Future<T>> values, String key, Callable<T> loader) throws IOException {
+        FutureTask<T> task = new FutureTask<>(loader);
+        Future<T> value = values.putIfAbsent(key, task);
+        if (value == null) {
+            value = task;
+            task.run();
+        }
+        try {
+            return value.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            values.remove(key, value);
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public interface PackageSource {
+        NpmPackage fetch(String source) throws IOException;
+    }
+}
@@ -0,0 +1,96 @@
+package org.hl7.fhir.contrib;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Loads the resources in a zip of JSON definitions (typically Bundles) in three stages: the calling thread decompresses
+ * the entries and splits each Bundle into its entry resources, a pool of workers parses batches of those resources
+ * straight from the decompressed bytes, and the calling thread collects the results in the order they appear in the zip.
+ */
+class DefinitionsLoader {
+
+    /**
+     * The amount of JSON handed to a worker at a time - small enough to balance the load even though most of the
+     * definitions are in a single Bundle, large enough to keep the scheduling overhead negligible
+     */
+    private static final int BATCH_SIZE = 256 * 1024;
+
+    @FunctionalInterface
+    interface Parser<R> {
+        R parse(InputStream in) throws IOException;
+    }
+
+    private DefinitionsLoader() {
+
+    }
+
+    /**
+     * @param definitions The zip file content
+     * @param threads     The number of threads parsing the resources
+     * @param parser      Parses a single resource. Called concurrently, so must not share parser instances between calls
+     * @return The resources, in the order they appear in the zip
+     * @throws IOException if the zip can't be read, or any of the resources can't be parsed
+     */
+    static <R> List<R> load(byte[] definitions, int threads, Parser<R> parser) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<R>>> batches = new ArrayList<>();
+            try (var zis = new ZipInputStream(new ByteArrayInputStream(definitions))) {
+                ZipEntry entry;
+                while ((entry = zis.getNextEntry()) != null) {
+                    if (entry.getName().endsWith(".json")) {
+                        byte[] content = zis.readAllBytes();
+                        List<ResourceScanner.Slice> batch = new ArrayList<>();
+                        int size = 0;
+                        for (var slice : ResourceScanner.entries(content)) {
+                            batch.add(slice);
+                            size += slice.length();
+                            if (size >= BATCH_SIZE) {
+                                batches.add(submit(executor, content, batch, parser));
+                                batch = new ArrayList<>();
+                                size = 0;
+                            }
+                        }
+                        if (!batch.isEmpty()) {
+                            batches.add(submit(executor, content, batch, parser));
+                        }
+                    }
+                }
+            }
+
+            List<R> resources = new ArrayList<>();
+            for (var batch : batches) {
+                resources.addAll(batch.get());
+            }
+            return resources;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading definitions");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to parse definitions", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <R> Future<List<R>> submit(ExecutorService executor, byte[] content, List<ResourceScanner.Slice> batch, Parser<R> parser) {
+        return executor.submit(() -> {
+            List<R> resources = new ArrayList<>(batch.size());
+            for (var slice : batch) {
+                resources.add(parser.parse(new ByteArrayInputStream(content, slice.offset(), slice.length())));
+            }
+            return resources;
+        });
+    }
+}
@@ -0,0 +1,117 @@
+package org.hl7.fhir.contrib;
+
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A binary (java serialized) copy of the parsed resources of a context - the core definitions and, for R4, the conformance
+ * resources of the packages - so that they don't have to be unzipped and parsed from JSON on every build. The snapshot file
+ * name is derived from the plugin version, the FHIR version, the content of the definitions and the id, version and content
+ * of the packages it was made from, so a snapshot is never used for anything else than what it was made from.
+ */
+class DefinitionsSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(DefinitionsSnapshot.class);
+    // only what parsed resources consist of: the model classes, the narrative's XHTML, the collections and values they hold,
+    // and the time zone and precision of dates. The limits are well above what the largest definitions need
+    private static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter(String.join(";",
+            "maxdepth=500", "maxarray=1000000",
+            "java.lang.*", "java.util.*", "java.math.*", "sun.util.calendar.ZoneInfo",
+            "org.hl7.fhir.r4.model.*", "org.hl7.fhir.r5.model.*", "org.hl7.fhir.utilities.xhtml.*", "ca.uhn.fhir.model.api.TemporalPrecisionEnum",
+            "!*"));
+
+    private final Path directory;
+    private final Path file;
+
+    private DefinitionsSnapshot(Path directory, Path file) {
+        this.directory = directory;
+        this.file = file;
+    }
+
+    /**
+     * @param directory   The directory holding the snapshots
+     * @param fhirVersion The FHIR version of the definitions, e.g. r4
+     * @param definitions The raw content the definitions are parsed from
+     * @param npmPackages The packages whose resources are in the snapshot too, if any
+     * @throws IOException if the content of a package can't be read
+     */
+    static DefinitionsSnapshot of(Path directory, String fhirVersion, byte[] definitions, List<NpmPackage> npmPackages) throws IOException {
+        StringBuilder b = new StringBuilder();
+        b.append(GenerationManifest.pluginVersion()).append('\n').append(fhirVersion).append('\n').append(ProfileFingerprints.sha256(definitions)).append('\n');
+        for (var npmPackage : npmPackages) {
+            b.append(npmPackage.id()).append('#').append(npmPackage.version()).append('=').append(ProfileFingerprints.contentHash(npmPackage)).append('\n');
+        }
+        String key = ProfileFingerprints.sha256(b.toString().getBytes(StandardCharsets.UTF_8));
+        return new DefinitionsSnapshot(directory, directory.resolve(fhirVersion + "-" + key + ".ser.gz"));
+    }
+
+    /**
+     * @return The resources in the snapshot, or null if there is no (usable) snapshot
+     */
+    @SuppressWarnings("unchecked")
+    <T> List<T> restore() {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (var in = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file))))) {
+            in.setObjectInputFilter(FILTER);
+            var resources = (List<T>) in.readObject();
+            logger.info("Restored {} definitions from snapshot {}", resources.size(), file);
+            return resources;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            logger.warn("Discarding unusable definitions snapshot {}", file, e);
+            invalidate();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot. The snapshot is written to a temporary file first and then moved into place, so a concurrent
+     * build never sees a partial snapshot. Failing to write the snapshot is not an error - it just won't be there next time.
+     */
+    <T> void store(List<T> resources) {
+        Path tmp = null;
+        try {
+            Files.createDirectories(directory);
+            tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (var out = new ObjectOutputStream(new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))) {
+                out.writeObject(new ArrayList<>(resources));
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Stored {} definitions in snapshot {}", resources.size(), file);
+        } catch (IOException e) {
+            logger.warn("Unable to store definitions snapshot {}", file, e);
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ex) {
+                    logger.debug("Unable to delete {}", tmp, ex);
+                }
+            }
+        }
+    }
+
+    void invalidate() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Unable to delete definitions snapshot {}", file, e);
+        }
+    }
+}
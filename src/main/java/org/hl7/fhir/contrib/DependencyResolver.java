@@ -0,0 +1,116 @@
+package org.hl7.fhir.contrib;
+
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the dependencies of packages, transitively, through the package cache. Independent branches of the dependency
+ * tree are fetched concurrently, and every id#version only once, however many packages depend on it. The FHIR core packages
+ * are skipped, as the core definitions are always loaded from the class path.
+ * <p>
+ * Dependencies that can't be resolved are logged and left out; the profiles that need them will fail to generate.
+ */
+public class DependencyResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(DependencyResolver.class);
+    private static final Pattern CORE_PACKAGE = Pattern.compile("hl7\\.fhir\\.r[0-9]+b?\\.(core|expansions|examples|search|elements)|hl7\\.fhir\\.core");
+
+    private final ContextRegistry registry;
+    private final int threads;
+
+    /**
+     * @param registry Fetches the packages, once per build
+     * @param threads  The number of packages fetched concurrently
+     */
+    public DependencyResolver(ContextRegistry registry, int threads) {
+        this.registry = registry;
+        this.threads = threads;
+    }
+
+    /**
+     * @return true for the packages of the FHIR specification itself
+     */
+    public static boolean isCorePackage(String id) {
+        return CORE_PACKAGE.matcher(id).matches();
+    }
+
+    /**
+     * @param roots The packages to resolve the dependencies of
+     * @return The roots followed by their dependencies, breadth first in the order they are declared, each id#version once
+     */
+    public List<NpmPackage> resolve(List<NpmPackage> roots) {
+        Map<String, NpmPackage> fetched = new ConcurrentHashMap<>();
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        roots.forEach(root -> seen.add(key(root)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Phaser pending = new Phaser(1);
+        try {
+            for (var root : roots) {
+                fetchDependencies(root, executor, pending, seen, fetched);
+            }
+            pending.arriveAndAwaitAdvance();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the order mustn't depend on which fetch finished first, as earlier packages win when resources clash
+        Map<String, NpmPackage> ordered = new LinkedHashMap<>();
+        Deque<NpmPackage> queue = new ArrayDeque<>(roots);
+        while (!queue.isEmpty()) {
+            NpmPackage npmPackage = queue.poll();
+            if (ordered.putIfAbsent(key(npmPackage), npmPackage) == null) {
+                for (var dependency : npmPackage.dependencies()) {
+                    NpmPackage resolved = fetched.get(dependency);
+                    if (resolved != null) {
+                        queue.add(resolved);
+                    }
+                }
+            }
+        }
+        if (ordered.size() > roots.size()) {
+            logger.info("Resolved {} dependencies: {}", ordered.size() - roots.size(), new ArrayList<>(ordered.keySet()).subList(roots.size(), ordered.size()));
+        }
+        return List.copyOf(ordered.values());
+    }
+
+    private void fetchDependencies(NpmPackage npmPackage, ExecutorService executor, Phaser pending, Set<String> seen, Map<String, NpmPackage> fetched) {
+        for (var dependency : npmPackage.dependencies()) {
+            String id = dependency.contains("#") ? dependency.substring(0, dependency.indexOf('#')) : dependency;
+            if (isCorePackage(id) || !seen.add(dependency)) {
+                continue;
+            }
+            // registered before the dependent package arrives, so the resolution can't complete in between
+            pending.register();
+            executor.execute(() -> {
+                try {
+                    NpmPackage resolved = registry.fetchPackage(dependency, CodeGeneratorFactory::validatePackage);
+                    fetched.put(dependency, resolved);
+                    fetchDependencies(resolved, executor, pending, seen, fetched);
+                } catch (Exception e) {
+                    logger.warn("Unable to resolve dependency {} of {}", dependency, key(npmPackage), e);
+                } finally {
+                    pending.arriveAndDeregister();
+                }
+            });
+        }
+    }
+
+    private static String key(NpmPackage npmPackage) {
+        return npmPackage.id() + "#" + npmPackage.version();
+    }
+}
@@ -0,0 +1,153 @@
+package org.hl7.fhir.contrib;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records which class was generated for which profile, and from what input (see {@link ProfileFingerprints}). Stored next
+ * to the generated classes so that a later run can skip the profiles that haven't changed. The files shared by the profile
+ * classes, such as the support class and shared enums, are recorded too: if any of them is missing, no profile is up to date.
+ */
+public class GenerationManifest {
+
+    private static final Logger logger = LoggerFactory.getLogger(GenerationManifest.class);
+    static final String FILE_NAME = ".fhir-codegen-manifest.json";
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private record Entry(String file, String fingerprint) {
+    }
+
+    private final Path folder;
+    private final Map<String, Entry> previous;
+    private final boolean sharedFilesExist;
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+    private final Set<String> shared = new TreeSet<>();
+
+    private GenerationManifest(Path folder, Map<String, Entry> previous, boolean sharedFilesExist) {
+        this.folder = folder;
+        this.previous = previous;
+        this.sharedFilesExist = sharedFilesExist;
+    }
+
+    /**
+     * @param folder The folder the classes are generated into
+     * @return The manifest of the previous run, or an empty manifest if there is none (or it can't be read)
+     */
+    public static GenerationManifest load(Path folder) {
+        Map<String, Entry> previous = new TreeMap<>();
+        boolean sharedFilesExist = true;
+        Path file = folder.resolve(FILE_NAME);
+        if (Files.exists(file)) {
+            try {
+                JsonNode root = MAPPER.readTree(file.toFile());
+                root.path("profiles").fields().forEachRemaining(e -> previous.put(e.getKey(), new Entry(e.getValue().path("file").asText(), e.getValue().path("fingerprint").asText())));
+                for (JsonNode shared : root.path("shared")) {
+                    if (!Files.exists(folder.resolve(shared.asText()))) {
+                        logger.info("{} is missing, regenerating all profiles", shared.asText());
+                        sharedFilesExist = false;
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Ignoring unreadable manifest {}", file, e);
+                previous.clear();
+            }
+        }
+        return new GenerationManifest(folder, previous, sharedFilesExist);
+    }
+
+    /**
+     * @return true if the profile was generated from the same input before, and the generated class and the shared files
+     * still exist
+     */
+    public boolean isUpToDate(String canonicalUrl, String fingerprint) {
+        Entry entry = previous.get(canonicalUrl);
+        return sharedFilesExist && entry != null && entry.fingerprint().equals(fingerprint) && Files.exists(folder.resolve(entry.file()));
+    }
+
+    /**
+     * Carries the entry of an up-to-date profile over from the previous run
+     */
+    public void keep(String canonicalUrl) {
+        current.put(canonicalUrl, previous.get(canonicalUrl));
+    }
+
+    public void record(String canonicalUrl, String file, String fingerprint) {
+        current.put(canonicalUrl, new Entry(file, fingerprint));
+    }
+
+    /**
+     * @param files The files shared by the generated classes, relative to the folder
+     */
+    public void recordShared(Collection<String> files) {
+        shared.addAll(files);
+    }
+
+    /**
+     * Deletes the classes of the profiles of the previous run that are no longer generated, because they were removed from
+     * the package or the selection of profiles, so that they don't keep compiling
+     *
+     * @param canonicalUrls The profiles generated by this run, whether they were up to date or not
+     */
+    public void prune(Collection<String> canonicalUrls) throws IOException {
+        Set<String> files = new HashSet<>();
+        current.values().forEach(entry -> files.add(entry.file()));
+        for (var entry : previous.entrySet()) {
+            if (!canonicalUrls.contains(entry.getKey()) && !files.contains(entry.getValue().file())) {
+                logger.info("Deleting {}, as {} is no longer generated", entry.getValue().file(), entry.getKey());
+                Files.deleteIfExists(folder.resolve(entry.getValue().file()));
+            }
+        }
+    }
+
+    /**
+     * Writes the manifest, unless it is identical to the one already on disk
+     */
+    public void save() throws IOException {
+        ObjectNode root = MAPPER.createObjectNode();
+        root.put("plugin", pluginVersion());
+        ObjectNode profiles = root.putObject("profiles");
+        new TreeMap<>(current).forEach((url, entry) -> profiles.putObject(url).put("file", entry.file()).put("fingerprint", entry.fingerprint()));
+        shared.forEach(root.putArray("shared")::add);
+
+        byte[] content = MAPPER.writeValueAsBytes(root);
+        Path file = folder.resolve(FILE_NAME);
+        if (!Files.exists(file) || !Arrays.equals(Files.readAllBytes(file), content)) {
+            Files.write(file, content);
+        }
+    }
+
+    /**
+     * @return The version of this plugin, as recorded by the maven build, or "development" when running from the source tree
+     */
+    static String pluginVersion() {
+        try (InputStream in = GenerationManifest.class.getResourceAsStream("/META-INF/maven/org.hl7.fhir.contrib/" + CodeGenPlugin.PLUGIN_NAME + "/pom.properties")) {
+            if (in != null) {
+                Properties properties = new Properties();
+                properties.load(in);
+                return properties.getProperty("version", "development");
+            }
+        } catch (IOException e) {
+            logger.debug("Unable to read the plugin version", e);
+        }
+        return "development";
+    }
+}
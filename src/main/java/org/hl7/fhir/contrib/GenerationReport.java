@@ -0,0 +1,194 @@
+package org.hl7.fhir.contrib;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the wall time, CPU time and allocated bytes of the phases of a generation run, in total and per profile. Phases
+ * may nest; a phase is only charged for what it didn't spend in the phases nested in it, so the phase totals add up to the
+ * time measured. CPU time and allocations are measured on the thread that begins and ends the phase, and reported as -1 if
+ * the JVM can't measure them. They leave out the threads a phase fans its work out to, such as the threads loading the
+ * packages of the context or fetching dependencies, so the report labels them as the calling thread's. The profiles are
+ * each generated on a single thread, so their figures are complete.
+ */
+public class GenerationReport implements PECodeGenerator.Profiler {
+
+    private static final Logger logger = LoggerFactory.getLogger(GenerationReport.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The phase charged with whatever generating a profile spends outside the phases nested in it
+     */
+    public static final String GENERATE = "generate";
+
+    private final long started = System.nanoTime();
+    private final Map<String, Totals> phases = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Totals>> profiles = new ConcurrentHashMap<>();
+    private final ThreadLocal<Deque<Frame>> frames = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private static final class Totals {
+        private int count;
+        private long wall;
+        private long cpu;
+        private long allocated;
+
+        synchronized void add(long wall, long cpu, long allocated) {
+            count++;
+            this.wall += wall;
+            this.cpu += cpu;
+            this.allocated += allocated;
+        }
+
+        synchronized long wall() {
+            return wall;
+        }
+
+        synchronized ObjectNode toJson() {
+            ObjectNode node = MAPPER.createObjectNode();
+            node.put("count", count);
+            node.put("wallMillis", wall / 1_000_000);
+            node.put("callingThreadCpuMillis", cpu < 0 ? -1 : cpu / 1_000_000);
+            node.put("callingThreadAllocatedBytes", allocated < 0 ? -1 : allocated);
+            return node;
+        }
+    }
+
+    private final class Frame implements Phase {
+        private final String phase;
+        private final String profile;
+        private final long wall = System.nanoTime();
+        private final long cpu = cpuTime();
+        private final long allocated = allocatedBytes();
+        private long nestedWall;
+        private long nestedCpu;
+        private long nestedAllocated;
+
+        Frame(String phase, String profile) {
+            this.phase = phase;
+            this.profile = profile;
+        }
+
+        @Override
+        public void close() {
+            Deque<Frame> stack = frames.get();
+            stack.pop();
+            long wall = System.nanoTime() - this.wall;
+            long cpu = this.cpu < 0 ? -1 : cpuTime() - this.cpu;
+            long allocated = this.allocated < 0 ? -1 : allocatedBytes() - this.allocated;
+            long ownCpu = cpu < 0 ? -1 : cpu - nestedCpu;
+            long ownAllocated = allocated < 0 ? -1 : allocated - nestedAllocated;
+
+            phases.computeIfAbsent(phase, p -> new Totals()).add(wall - nestedWall, ownCpu, ownAllocated);
+            if (profile != null) {
+                profiles.computeIfAbsent(profile, p -> new ConcurrentHashMap<>()).computeIfAbsent(phase, p -> new Totals()).add(wall - nestedWall, ownCpu, ownAllocated);
+            }
+            Frame parent = stack.peek();
+            if (parent != null) {
+                parent.nestedWall += wall;
+                parent.nestedCpu += cpu;
+                parent.nestedAllocated += allocated;
+            }
+        }
+    }
+
+    /**
+     * Begins a phase on the current thread, charged to the profile of the enclosing {@link #profile(String)}, if any
+     */
+    @Override
+    public Phase begin(String phase) {
+        Deque<Frame> stack = frames.get();
+        Frame parent = stack.peek();
+        Frame frame = new Frame(phase, parent == null ? null : parent.profile);
+        stack.push(frame);
+        return frame;
+    }
+
+    /**
+     * Begins generating a profile on the current thread. The phases begun until it is closed are charged to the profile
+     */
+    public Phase profile(String canonicalUrl) {
+        Frame frame = new Frame(GENERATE, canonicalUrl);
+        frames.get().push(frame);
+        return frame;
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean threads && threads.isThreadAllocatedMemoryEnabled()) {
+            return threads.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    /**
+     * @return The profiles by the total wall time spent generating them, slowest first
+     */
+    private List<Map.Entry<String, Long>> profilesBySlowest() {
+        return profiles.entrySet().stream()
+                .map(e -> Map.entry(e.getKey(), e.getValue().values().stream().mapToLong(Totals::wall).sum()))
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()).thenComparing(Map.Entry.comparingByKey()))
+                .toList();
+    }
+
+    /**
+     * Logs the total time per phase and the slowest profiles
+     *
+     * @param slowest The number of profiles to name
+     */
+    public void logSummary(int slowest) {
+        logger.info("Generation took {} ms", (System.nanoTime() - started) / 1_000_000);
+        new TreeMap<>(phases).forEach((phase, totals) -> {
+            var json = totals.toJson();
+            logger.info("  {}: {} ms wall, {} ms CPU and {} bytes allocated on the calling thread ({}x)", phase, json.get("wallMillis"), json.get("callingThreadCpuMillis"), json.get("callingThreadAllocatedBytes"), json.get("count"));
+        });
+        var bySlowest = profilesBySlowest();
+        if (!bySlowest.isEmpty() && slowest > 0) {
+            logger.info("Slowest profiles:");
+            bySlowest.stream().limit(slowest).forEach(e -> logger.info("  {} ms {}", e.getValue() / 1_000_000, e.getKey()));
+        }
+    }
+
+    /**
+     * Writes the report as JSON, with the profiles ordered slowest first
+     */
+    public void write(Path file) throws IOException {
+        ObjectNode report = MAPPER.createObjectNode();
+        report.put("elapsedMillis", (System.nanoTime() - started) / 1_000_000);
+        ObjectNode phasesNode = report.putObject("phases");
+        new TreeMap<>(phases).forEach((phase, totals) -> phasesNode.set(phase, totals.toJson()));
+        var profilesNode = report.putArray("profiles");
+        for (var entry : profilesBySlowest()) {
+            ObjectNode profile = profilesNode.addObject();
+            profile.put("url", entry.getKey());
+            profile.put("wallMillis", entry.getValue() / 1_000_000);
+            ObjectNode profilePhases = profile.putObject("phases");
+            new TreeMap<>(profiles.get(entry.getKey())).forEach((phase, totals) -> profilePhases.set(phase, totals.toJson()));
+        }
+
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        MAPPER.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), report);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
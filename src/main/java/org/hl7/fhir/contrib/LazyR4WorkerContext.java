@@ -0,0 +1,164 @@
+package org.hl7.fhir.contrib;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * An R4 worker context that only indexes the conformance resources by canonical URL up front, and parses and caches a
+ * resource the first time it is asked for. Suited for generating code for a handful of profiles, where materializing the
+ * whole core specification and IG package would dominate the run time.
+ * <p>
+ * The index is built with a streaming scan of the core definitions and of the files listed in the package index. Only
+ * StructureDefinitions, ValueSets, CodeSystems and ConceptMaps are indexed; resources in the IG package take precedence
+ * over core resources with the same URL. Methods listing all resources of a kind only see what has been loaded so far -
+ * except for {@link #getResourceNames()}, which is answered from the index.
+ * <p>
+ * The context is not thread safe: fetching a resource adds it to the maps every other accessor of the context reads,
+ * without locking them. All use of a lazy context must be serialized, as {@link CodeGeneratorFactory} does by generating
+ * one profile at a time over it.
+ */
+public class LazyR4WorkerContext extends org.hl7.fhir.r4.context.SimpleWorkerContext {
+
+    private static final Logger logger = LoggerFactory.getLogger(LazyR4WorkerContext.class);
+    private static final Set<String> INDEXED_TYPES = Set.of("StructureDefinition", "ValueSet", "CodeSystem", "ConceptMap");
+
+    private record Source(byte[] content, ResourceScanner.Slice slice, ResourceScanner.Summary summary) {
+    }
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final Map<String, Source> index = new HashMap<>();
+    private final List<String> resourceNames = new ArrayList<>();
+
+    private LazyR4WorkerContext() throws IOException {
+        super();
+    }
+
+    /**
+     * @param npmPackage  The IG package
+     * @param definitions The content of the core definitions zip
+     * @return A context that loads the resources of both on demand
+     * @throws IOException if either can't be read
+     */
+    public static LazyR4WorkerContext create(NpmPackage npmPackage, byte[] definitions) throws IOException {
+        return create(List.of(npmPackage), definitions);
+    }
+
+    /**
+     * @param npmPackages The IG packages. Resources in earlier packages take precedence over those in later ones
+     * @param definitions The content of the core definitions zip
+     * @return A context that loads the resources of all of them on demand
+     * @throws IOException if any can't be read
+     */
+    public static LazyR4WorkerContext create(List<NpmPackage> npmPackages, byte[] definitions) throws IOException {
+        var workerContext = new LazyR4WorkerContext();
+        ContextBuilder.initialise(workerContext, npmPackages.get(0));
+        workerContext.setExpansionProfile(new org.hl7.fhir.r4.model.Parameters());
+
+        for (var npmPackage : npmPackages) {
+            var folder = npmPackage.getFolders().get("package");
+            for (var type : INDEXED_TYPES) {
+                for (var file : folder.getTypes().getOrDefault(type, List.of())) {
+                    byte[] content = folder.fetchFile(file);
+                    workerContext.index(content, new ResourceScanner.Slice(0, content.length));
+                }
+            }
+        }
+
+        try (var zis = new ZipInputStream(new ByteArrayInputStream(definitions))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.getName().endsWith(".json")) {
+                    byte[] content = zis.readAllBytes();
+                    for (var slice : ResourceScanner.entries(content)) {
+                        workerContext.index(content, slice);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(workerContext.resourceNames);
+        logger.info("Indexed {} conformance resources for on demand loading", workerContext.index.size());
+        return workerContext;
+    }
+
+    private void index(byte[] content, ResourceScanner.Slice slice) throws IOException {
+        var summary = ResourceScanner.summarise(content, slice);
+        if (summary != null && summary.url() != null && INDEXED_TYPES.contains(summary.resourceType()) && !index.containsKey(summary.url())) {
+            index.put(summary.url(), new Source(content, slice, summary));
+            if ("StructureDefinition".equals(summary.resourceType()) && "resource".equals(summary.kind()) && "specialization".equals(summary.derivation())) {
+                resourceNames.add(summary.name());
+            }
+        }
+    }
+
+    /**
+     * Parses and caches the resource with the given URL, if it is indexed and hasn't been loaded yet
+     */
+    private void materialize(String uri) {
+        if (uri == null) {
+            return;
+        }
+        String url = uri;
+        if (url.contains("|")) {
+            url = url.substring(0, url.indexOf('|'));
+        }
+        if (url.contains("#")) {
+            url = url.substring(0, url.indexOf('#'));
+        }
+        Source source = index.remove(url);
+        if (source != null) {
+            var resource = (Resource) fhirContext.newJsonParser().parseResource(new ByteArrayInputStream(source.content(), source.slice().offset(), source.slice().length()));
+            try {
+                cacheResource(resource);
+            } catch (Exception e) {
+                logger.debug("Error loading {}", url, e);
+            }
+        }
+    }
+
+    @Override
+    public <T extends Resource> T fetchResource(Class<T> class_, String uri) {
+        materialize(uri);
+        return super.fetchResource(class_, uri);
+    }
+
+    @Override
+    public <T extends Resource> T fetchResourceWithException(Class<T> class_, String uri) throws FHIRException {
+        materialize(uri);
+        return super.fetchResourceWithException(class_, uri);
+    }
+
+    @Override
+    public StructureDefinition fetchTypeDefinition(String typeName) {
+        materialize(typeName.contains(":") ? typeName : "http://hl7.org/fhir/StructureDefinition/" + typeName);
+        return super.fetchTypeDefinition(typeName);
+    }
+
+    @Override
+    public CodeSystem fetchCodeSystem(String system) {
+        materialize(system);
+        return super.fetchCodeSystem(system);
+    }
+
+    @Override
+    public List<String> getResourceNames() {
+        return Collections.unmodifiableList(resourceNames);
+    }
+}
@@ -0,0 +1,75 @@
+package org.hl7.fhir.contrib;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes installs into the package cache, both between the threads of a build (parallel reactor builds run executions
+ * concurrently) and between builds sharing the cache. The file lock alone isn't enough within a JVM, where locking a file
+ * twice fails instead of waiting, so threads queue on an in-memory lock first.
+ */
+final class PackageCacheLock implements AutoCloseable {
+
+    private static final Map<Path, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock;
+    private final FileChannel channel;
+    private final FileLock fileLock;
+
+    private PackageCacheLock(ReentrantLock lock, FileChannel channel, FileLock fileLock) {
+        this.lock = lock;
+        this.channel = channel;
+        this.fileLock = fileLock;
+    }
+
+    /**
+     * @return The default location of the lock files, next to the packages in the FHIR package cache
+     */
+    static Path defaultDirectory() {
+        return Path.of(System.getProperty("user.home"), ".fhir", "packages", "codegen-locks");
+    }
+
+    /**
+     * Waits until no other thread or process holds the lock of the name, and takes it
+     *
+     * @param name What to lock, e.g. a package id#version
+     */
+    static PackageCacheLock acquire(String name) throws IOException {
+        return acquire(defaultDirectory(), name);
+    }
+
+    static PackageCacheLock acquire(Path directory, String name) throws IOException {
+        Path file = directory.resolve(name.replaceAll("[^A-Za-z0-9.#_-]", "_") + ".lock").toAbsolutePath();
+        ReentrantLock lock = LOCKS.computeIfAbsent(file, f -> new ReentrantLock());
+        lock.lock();
+        FileChannel channel = null;
+        try {
+            Files.createDirectories(directory);
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            return new PackageCacheLock(lock, channel, channel.lock());
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            fileLock.release();
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
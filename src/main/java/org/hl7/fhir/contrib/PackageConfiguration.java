@@ -0,0 +1,54 @@
+package org.hl7.fhir.contrib;
+
+/**
+ * One entry of the {@code packages} parameter of the generate goal: a package to generate code from, and where to
+ */
+public class PackageConfiguration {
+
+    private String packageId;
+    private String packageName;
+    private String[] profiles;
+
+    public PackageConfiguration() {
+
+    }
+
+    public PackageConfiguration(String packageId, String packageName, String[] profiles) {
+        this.packageId = packageId;
+        this.packageName = packageName;
+        this.profiles = profiles;
+    }
+
+    /**
+     * @return The package id (id#version), URL or file path of the Implementation Guide
+     */
+    public String getPackageId() {
+        return packageId;
+    }
+
+    public void setPackageId(String packageId) {
+        this.packageId = packageId;
+    }
+
+    /**
+     * @return The Java package of the classes generated from the package, or null to derive it from the package id
+     */
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public void setPackageName(String packageName) {
+        this.packageName = packageName;
+    }
+
+    /**
+     * @return The profiles to generate code for, or null to discover them
+     */
+    public String[] getProfiles() {
+        return profiles;
+    }
+
+    public void setProfiles(String[] profiles) {
+        this.profiles = profiles;
+    }
+}
@@ -0,0 +1,260 @@
+package org.hl7.fhir.contrib;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Properties;
+
+/**
+ * Fetches packages given by URL (http, https, file or classpath) or file path into the package cache, without ever holding
+ * the package in memory: the package is streamed to a temporary file once (or read in place for local files) while its
+ * SHA-256 is computed, and installed from that file.
+ * <p>
+ * For every source the id#version and hash of what was installed from it is recorded. If the cache still holds that
+ * id#version and the source is unchanged, the package is neither downloaded nor extracted again - for http(s) sources this
+ * is determined with a conditional request (ETag/Last-Modified), or not at all if the server supports neither, for local
+ * sources by comparing the hash. The hash is recorded per id#version too, so a package already installed from another
+ * source, or by other tools, isn't extracted again unless it was installed from different content.
+ */
+public class PackageFetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(PackageFetcher.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final FilesystemPackageCacheManager packageManager;
+    private final Path stateDirectory;
+    private final HttpClient httpClient = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NORMAL).build();
+
+    /**
+     * @param packageManager The package cache to install the packages into
+     * @param stateDirectory Where to record what was installed from which source
+     */
+    public PackageFetcher(FilesystemPackageCacheManager packageManager, Path stateDirectory) {
+        this.packageManager = packageManager;
+        this.stateDirectory = stateDirectory;
+    }
+
+    /**
+     * @return The default location of the source records, next to the packages in the FHIR package cache
+     */
+    public static Path defaultStateDirectory() {
+        return Path.of(System.getProperty("user.home"), ".fhir", "packages", "codegen-sources");
+    }
+
+    /**
+     * @param source A http, https, file or classpath URL, or an absolute file path, of a package tarball
+     * @return The package, as installed in the package cache
+     * @throws IOException if the package can't be fetched or installed
+     */
+    public NpmPackage fetch(String source) throws IOException {
+        String sourceHash = ProfileFingerprints.sha256(source.getBytes(StandardCharsets.UTF_8));
+        // concurrent fetches of the same source would race on its record
+        try (var lock = PackageCacheLock.acquire("source-" + sourceHash)) {
+            return fetch(source, stateDirectory.resolve(sourceHash + ".properties"));
+        }
+    }
+
+    private NpmPackage fetch(String source, Path stateFile) throws IOException {
+        Properties state = readState(stateFile);
+        NpmPackage cached = cachedPackage(state);
+
+        if (source.startsWith("file:") || source.startsWith("/")) {
+            Path file = source.startsWith("file:") ? Path.of(URI.create(source)) : Path.of(source);
+            return install(source, file, sha256(file), cached, state, stateFile);
+        }
+
+        if (cached != null && source.startsWith("classpath:")) {
+            // hashed in place, as it only has to be copied out of the jar if it changed
+            String hash;
+            try (InputStream in = new DefaultResourceLoader().getResource(source).getInputStream()) {
+                hash = sha256(in);
+            }
+            if (hash.equals(state.getProperty("sha256"))) {
+                logger.info("Package {} is unchanged, using {}#{} from the package cache", source, cached.id(), cached.version());
+                return cached;
+            }
+        } else if (cached != null && !state.containsKey("etag") && !state.containsKey("lastModified")) {
+            logger.info("Package {} was installed as {}#{}, and its server can't tell if it changed; using the package cache", source, cached.id(), cached.version());
+            return cached;
+        }
+
+        Path tmp = Files.createTempFile("fhir-package", ".tgz");
+        try {
+            String hash;
+            if (source.startsWith("classpath:")) {
+                try (InputStream in = new DefaultResourceLoader().getResource(source).getInputStream()) {
+                    hash = copy(in, tmp);
+                }
+            } else {
+                var request = HttpRequest.newBuilder(URI.create(source)).GET();
+                if (cached != null && state.containsKey("etag")) {
+                    request.header("If-None-Match", state.getProperty("etag"));
+                }
+                if (cached != null && state.containsKey("lastModified")) {
+                    request.header("If-Modified-Since", state.getProperty("lastModified"));
+                }
+                HttpResponse<InputStream> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+                try (InputStream in = response.body()) {
+                    if (response.statusCode() == 304) {
+                        logger.info("Package {} is unchanged, using {}#{} from the package cache", source, cached.id(), cached.version());
+                        return cached;
+                    }
+                    if (response.statusCode() != 200) {
+                        throw new IOException("Unable to fetch package " + source + ": HTTP status " + response.statusCode());
+                    }
+                    hash = copy(in, tmp);
+                }
+                state.remove("etag");
+                state.remove("lastModified");
+                response.headers().firstValue("ETag").ifPresent(etag -> state.setProperty("etag", etag));
+                response.headers().firstValue("Last-Modified").ifPresent(lastModified -> state.setProperty("lastModified", lastModified));
+            }
+            return install(source, tmp, hash, cached, state, stateFile);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching " + source);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private NpmPackage install(String source, Path tarball, String hash, NpmPackage cached, Properties state, Path stateFile) throws IOException {
+        if (cached != null && hash.equals(state.getProperty("sha256"))) {
+            logger.info("Package {} is unchanged, using {}#{} from the package cache", source, cached.id(), cached.version());
+            writeState(stateFile, state);
+            return cached;
+        }
+
+        JsonNode manifest = readManifest(tarball);
+        String id = manifest.path("name").asText(null);
+        String version = manifest.path("version").asText(null);
+        if (id == null || version == null) {
+            throw new IOException("Package " + source + " doesn't declare a name and version in package/package.json");
+        }
+
+        NpmPackage npmPackage;
+        try (var lock = PackageCacheLock.acquire(id + "#" + version)) {
+            Path packageFile = stateDirectory.resolve(id + "#" + version + ".properties");
+            Properties installed = readState(packageFile);
+            if (!installed.containsKey("sha256") && id.equals(state.getProperty("id")) && version.equals(state.getProperty("version"))) {
+                installed.setProperty("sha256", state.getProperty("sha256"));
+            }
+            npmPackage = packageManager.loadPackageFromCacheOnly(id, version);
+            if (npmPackage != null && installed.getProperty("sha256", hash).equals(hash)) {
+                logger.info("Package {} is {}#{}, which the package cache already holds", source, id, version);
+            } else {
+                logger.info("Installing {}#{} from {} into the package cache", id, version, source);
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(tarball))) {
+                    npmPackage = packageManager.addPackageToCache(id, version, in, source);
+                }
+                installed.setProperty("sha256", hash);
+                writeState(packageFile, installed);
+            }
+        }
+
+        state.setProperty("id", id);
+        state.setProperty("version", version);
+        state.setProperty("sha256", hash);
+        writeState(stateFile, state);
+        return npmPackage;
+    }
+
+    /**
+     * @return The package previously installed from the source, if it is still in the cache
+     */
+    private NpmPackage cachedPackage(Properties state) throws IOException {
+        if (!state.containsKey("id") || !state.containsKey("version")) {
+            return null;
+        }
+        return packageManager.loadPackageFromCacheOnly(state.getProperty("id"), state.getProperty("version"));
+    }
+
+    /**
+     * Reads package/package.json from the tarball, without extracting anything else
+     */
+    static JsonNode readManifest(Path tarball) throws IOException {
+        try (var tar = new TarArchiveInputStream(new GzipCompressorInputStream(new BufferedInputStream(Files.newInputStream(tarball))))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (entry.getName().equals("package/package.json")) {
+                    return MAPPER.readTree(tar.readAllBytes());
+                }
+            }
+        }
+        throw new IOException("Not a FHIR package: " + tarball + " has no package/package.json");
+    }
+
+    private static String copy(InputStream in, Path target) throws IOException {
+        var digest = new DigestInputStream(in, sha256());
+        try (OutputStream out = Files.newOutputStream(target)) {
+            digest.transferTo(out);
+        }
+        return HexFormat.of().formatHex(digest.getMessageDigest().digest());
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return sha256(in);
+        }
+    }
+
+    private static String sha256(InputStream in) throws IOException {
+        var digest = new DigestInputStream(in, sha256());
+        digest.transferTo(OutputStream.nullOutputStream());
+        return HexFormat.of().formatHex(digest.getMessageDigest().digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Properties readState(Path stateFile) throws IOException {
+        Properties state = new Properties();
+        if (Files.exists(stateFile)) {
+            try (Reader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+                state.load(reader);
+            }
+        }
+        return state;
+    }
+
+    private static void writeState(Path stateFile, Properties state) throws IOException {
+        Files.createDirectories(stateFile.getParent());
+        Path tmp = Files.createTempFile(stateFile.getParent(), stateFile.getFileName().toString(), ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            state.store(writer, null);
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,83 @@
+package org.hl7.fhir.contrib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Selects which StructureDefinitions in a package to generate code for, when no profiles are configured explicitly. All
+ * criteria are evaluated against the {@link ResourceScanner.Summary} of the StructureDefinition, so excluded ones are never
+ * parsed. An empty criterion accepts everything.
+ */
+public class ProfileFilter {
+
+    public static final ProfileFilter ALL = new ProfileFilter(null, null, null, null);
+
+    private final Set<String> kinds;
+    private final Set<String> types;
+    private final String derivation;
+    private final List<Pattern> includes = new ArrayList<>();
+    private final List<Pattern> excludes = new ArrayList<>();
+
+    /**
+     * @param kinds      The StructureDefinition kinds to accept, e.g. resource, complex-type or logical
+     * @param types      The types the StructureDefinitions must define or constrain, e.g. Patient or Extension
+     * @param derivation The derivation to accept, i.e. constraint or specialization
+     * @param urls       Globs (using * and ?) the canonical URL must match. Globs starting with ! exclude the URLs they match
+     */
+    public ProfileFilter(Collection<String> kinds, Collection<String> types, String derivation, Collection<String> urls) {
+        this.kinds = kinds == null ? Set.of() : Set.copyOf(kinds);
+        this.types = types == null ? Set.of() : Set.copyOf(types);
+        this.derivation = derivation;
+        if (urls != null) {
+            for (String url : urls) {
+                if (url.startsWith("!")) {
+                    excludes.add(glob(url.substring(1)));
+                } else {
+                    includes.add(glob(url));
+                }
+            }
+        }
+    }
+
+    public boolean accepts(ResourceScanner.Summary summary) {
+        if (summary.url() == null || !"StructureDefinition".equals(summary.resourceType())) {
+            return false;
+        }
+        if (!kinds.isEmpty() && !kinds.contains(summary.kind())) {
+            return false;
+        }
+        if (!types.isEmpty() && !types.contains(summary.type())) {
+            return false;
+        }
+        if (derivation != null && !derivation.equals(summary.derivation())) {
+            return false;
+        }
+        if (!includes.isEmpty() && includes.stream().noneMatch(p -> p.matcher(summary.url()).matches())) {
+            return false;
+        }
+        return excludes.stream().noneMatch(p -> p.matcher(summary.url()).matches());
+    }
+
+    private static Pattern glob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.trim().toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (!literal.isEmpty()) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (!literal.isEmpty()) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
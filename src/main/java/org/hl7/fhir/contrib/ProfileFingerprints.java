@@ -0,0 +1,134 @@
+package org.hl7.fhir.contrib;
+
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+/**
+ * Computes a content hash per profile, covering the package it comes from, the generator options and every resource in the
+ * context packages the profile transitively refers to (base profiles, type profiles, extensions, ValueSets and CodeSystems),
+ * so a profile deriving from a profile in a dependency is generated again when that profile changes. Resources from the core
+ * specification are not hashed individually - they are covered by the plugin version and the hash of the core definitions,
+ * which are expected to be part of the options.
+ */
+public class ProfileFingerprints {
+
+    private record IndexedResource(byte[] content, String hash) {
+    }
+
+    // packages are shared through the registry, so their content is hashed once per build rather than once per use
+    private static final Map<NpmPackage, String> CONTENT_HASHES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final String packageKey;
+    private final String options;
+    private final Map<String, IndexedResource> resources = new HashMap<>();
+
+    /**
+     * @param npmPackage The package the profiles come from
+     * @param options    A description of the generator options affecting the generated code
+     * @throws IOException if the package content can't be read
+     */
+    public ProfileFingerprints(NpmPackage npmPackage, String options) throws IOException {
+        this(npmPackage, List.of(npmPackage), options);
+    }
+
+    /**
+     * @param npmPackage      The package the profiles come from
+     * @param contextPackages All packages loaded into the context, the one the profiles come from and its dependencies
+     * @param options         A description of the generator options affecting the generated code
+     * @throws IOException if the package content can't be read
+     */
+    public ProfileFingerprints(NpmPackage npmPackage, List<NpmPackage> contextPackages, String options) throws IOException {
+        this.packageKey = npmPackage.id() + "#" + npmPackage.version();
+        this.options = options;
+
+        // the package generated from comes first, as its resources win over those of its dependencies
+        index(npmPackage);
+        for (NpmPackage contextPackage : contextPackages) {
+            if (contextPackage != npmPackage) {
+                index(contextPackage);
+            }
+        }
+    }
+
+    private void index(NpmPackage npmPackage) throws IOException {
+        var folder = npmPackage.getFolders().get("package");
+        for (var files : folder.getTypes().values()) {
+            for (var file : files) {
+                byte[] content = folder.fetchFile(file);
+                var summary = ResourceScanner.summarise(content);
+                if (summary != null && summary.url() != null) {
+                    resources.putIfAbsent(summary.url(), new IndexedResource(content, sha256(content)));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param canonicalUrl The canonical URL of the profile
+     * @return A hex encoded SHA-256 hash identifying the input of the code generation for the profile
+     * @throws IOException if a resource in the package is not valid JSON
+     */
+    public String fingerprint(String canonicalUrl) throws IOException {
+        Set<String> closure = new TreeSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(canonicalUrl);
+        while (!queue.isEmpty()) {
+            String url = queue.poll();
+            IndexedResource resource = resources.get(url);
+            if (resource != null && closure.add(url)) {
+                for (String reference : ResourceScanner.canonicalReferences(resource.content())) {
+                    if (resources.containsKey(reference) && !closure.contains(reference)) {
+                        queue.add(reference);
+                    }
+                }
+            }
+        }
+
+        StringBuilder b = new StringBuilder();
+        b.append(packageKey).append('\n').append(options).append('\n').append(canonicalUrl).append('\n');
+        for (String url : closure) {
+            b.append(url).append('=').append(resources.get(url).hash()).append('\n');
+        }
+        return sha256(b.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return A hash of the names and content of the files in the package, as the same id#version may be installed from
+     * different content during development
+     */
+    static String contentHash(NpmPackage npmPackage) throws IOException {
+        String hash = CONTENT_HASHES.get(npmPackage);
+        if (hash == null) {
+            var folder = npmPackage.getFolders().get("package");
+            StringBuilder b = new StringBuilder();
+            for (var file : new TreeSet<>(folder.listFiles())) {
+                b.append(file).append('=').append(sha256(folder.fetchFile(file))).append('\n');
+            }
+            hash = sha256(b.toString().getBytes(StandardCharsets.UTF_8));
+            CONTENT_HASHES.put(npmPackage, hash);
+        }
+        return hash;
+    }
+
+    static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
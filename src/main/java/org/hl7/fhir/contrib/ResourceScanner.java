@@ -0,0 +1,155 @@
+package org.hl7.fhir.contrib;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Cheap, streaming look into FHIR JSON resources that never builds an object model. Used wherever only a few top level
+ * properties of a conformance resource are needed.
+ */
+public class ResourceScanner {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private ResourceScanner() {
+
+    }
+
+    /**
+     * The top level properties of a conformance resource needed to index it
+     */
+    public record Summary(String resourceType, String url, String version, String name, String kind, String derivation, String type) {
+    }
+
+    /**
+     * The location of a single resource within a JSON document
+     */
+    public record Slice(int offset, int length) {
+    }
+
+    /**
+     * Splits a document into the resources it holds, without parsing them. For a Bundle these are the resources of its
+     * entries, in order; any other resource is returned as a single slice covering the whole document.
+     *
+     * @param json The JSON representation of a resource
+     * @return The locations of the resources in the document
+     * @throws IOException if the content is not valid JSON
+     */
+    public static List<Slice> entries(byte[] json) throws IOException {
+        List<Slice> entries = new ArrayList<>();
+        boolean bundle = false;
+        try (JsonParser parser = JSON.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return List.of(new Slice(0, json.length));
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("resourceType".equals(field) && token == JsonToken.VALUE_STRING) {
+                    bundle = "Bundle".equals(parser.getText());
+                } else if ("entry".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String entryField = parser.getCurrentName();
+                            if (parser.nextToken() == JsonToken.START_OBJECT && "resource".equals(entryField)) {
+                                int start = (int) parser.getTokenLocation().getByteOffset();
+                                parser.skipChildren();
+                                entries.add(new Slice(start, (int) parser.getCurrentLocation().getByteOffset() - start));
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return bundle ? entries : List.of(new Slice(0, json.length));
+    }
+
+    /**
+     * @param json The JSON representation of a resource
+     * @return The summary of the resource, or null if the content isn't a JSON object
+     * @throws IOException if the content is not valid JSON
+     */
+    public static Summary summarise(byte[] json) throws IOException {
+        try (JsonParser parser = JSON.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            return summarise(parser);
+        }
+    }
+
+    /**
+     * @param json  A JSON document
+     * @param slice The location of the resource within the document
+     * @return The summary of the resource, or null if the slice isn't a JSON object
+     * @throws IOException if the content is not valid JSON
+     */
+    public static Summary summarise(byte[] json, Slice slice) throws IOException {
+        try (JsonParser parser = JSON.createParser(json, slice.offset(), slice.length())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            return summarise(parser);
+        }
+    }
+
+    /**
+     * Summarises the object the parser is positioned at (the current token must be START_OBJECT). On return the parser is
+     * positioned at the matching END_OBJECT.
+     */
+    static Summary summarise(JsonParser parser) throws IOException {
+        String resourceType = null, url = null, version = null, name = null, kind = null, derivation = null, type = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.VALUE_STRING) {
+                switch (field) {
+                    case "resourceType" -> resourceType = parser.getText();
+                    case "url" -> url = parser.getText();
+                    case "version" -> version = parser.getText();
+                    case "name" -> name = parser.getText();
+                    case "kind" -> kind = parser.getText();
+                    case "derivation" -> derivation = parser.getText();
+                    case "type" -> type = parser.getText();
+                    default -> {
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new Summary(resourceType, url, version, name, kind, derivation, type);
+    }
+
+    /**
+     * @param json The JSON representation of a resource
+     * @return All the absolute URLs found anywhere in the resource, without any |version suffix
+     * @throws IOException if the content is not valid JSON
+     */
+    public static Set<String> canonicalReferences(byte[] json) throws IOException {
+        Set<String> references = new TreeSet<>();
+        try (JsonParser parser = JSON.createParser(json)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.VALUE_STRING) {
+                    String value = parser.getText();
+                    if (value.startsWith("http:") || value.startsWith("https:") || value.startsWith("urn:")) {
+                        int bar = value.indexOf('|');
+                        references.add(bar < 0 ? value : value.substring(0, bar));
+                    }
+                }
+            }
+        }
+        return references;
+    }
+}
@@ -0,0 +1,157 @@
+package org.hl7.fhir.contrib;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.context.IWorkerContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator;
+import org.hl7.fhir.r4.terminologies.ValueSetExpander.ValueSetExpansionOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares the expansions of the ValueSets bound to enums between all profiles generated in a run, keyed by url|version.
+ * Successful expansions can be persisted as a Bundle of expanded ValueSets, so later runs against the same package don't
+ * expand them again. The cached expansions are handed to every generator as is, and must not be modified.
+ */
+public class ValueSetExpansionCache implements PECodeGenerator.ExpansionProvider {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValueSetExpansionCache.class);
+
+    private final Path file;
+    private final Map<String, ValueSetExpansionOutcome> expansions = new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger persisted = new AtomicInteger();
+
+    private ValueSetExpansionCache(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The default location of the persisted expansions, next to the packages in the FHIR package cache
+     */
+    public static Path defaultDirectory() {
+        return Path.of(System.getProperty("user.home"), ".fhir", "packages", "codegen-expansions");
+    }
+
+    /**
+     * @return A cache that only lives as long as the run
+     */
+    public static ValueSetExpansionCache inMemory() {
+        return new ValueSetExpansionCache(null);
+    }
+
+    /**
+     * @param file The file holding the expansions of a previous run. It doesn't need to exist
+     * @return A cache holding the previously persisted expansions, or an empty one if they can't be read
+     */
+    public static ValueSetExpansionCache load(Path file) {
+        var cache = new ValueSetExpansionCache(file);
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                var bundle = FhirContext.forR4().newJsonParser().parseResource(Bundle.class, reader);
+                for (var entry : bundle.getEntry()) {
+                    if (entry.getResource() instanceof ValueSet vs) {
+                        cache.expansions.put(key(vs), new ValueSetExpansionOutcome(vs));
+                    }
+                }
+                cache.persisted.set(cache.expansions.size());
+                logger.info("Loaded {} ValueSet expansions from {}", cache.expansions.size(), file);
+            } catch (Exception e) {
+                logger.warn("Ignoring unreadable ValueSet expansions {}", file, e);
+                cache.expansions.clear();
+            }
+        }
+        return cache;
+    }
+
+    private static String key(ValueSet vs) {
+        return vs.getUrl() + "|" + vs.getVersion();
+    }
+
+    @Override
+    public ValueSetExpansionOutcome expand(IWorkerContext context, ValueSet vs) {
+        if (!vs.hasUrl()) {
+            misses.incrementAndGet();
+            return expandDirectly(context, vs);
+        }
+        String key = key(vs);
+        ValueSetExpansionOutcome outcome = expansions.get(key);
+        if (outcome != null) {
+            hits.incrementAndGet();
+            return outcome;
+        }
+        // the worker context isn't thread safe, so expansions are serialized on it anyway
+        synchronized (context) {
+            outcome = expansions.get(key);
+            if (outcome != null) {
+                hits.incrementAndGet();
+                return outcome;
+            }
+            misses.incrementAndGet();
+            outcome = context.expandVS(vs, false, false);
+            expansions.put(key, outcome);
+            return outcome;
+        }
+    }
+
+    private static ValueSetExpansionOutcome expandDirectly(IWorkerContext context, ValueSet vs) {
+        synchronized (context) {
+            return context.expandVS(vs, false, false);
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    public void logStatistics() {
+        logger.info("ValueSet expansion cache: {} hits, {} misses", hits.get(), misses.get());
+    }
+
+    /**
+     * Persists the successful expansions, if the cache has a file and anything was added since it was loaded
+     */
+    public void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        Map<String, ValueSet> successful = new TreeMap<>();
+        expansions.forEach((key, outcome) -> {
+            if (outcome.isOk() && outcome.getValueset() != null) {
+                successful.put(key, outcome.getValueset());
+            }
+        });
+        if (successful.size() == persisted.get()) {
+            return;
+        }
+
+        var bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+        successful.values().forEach(vs -> bundle.addEntry().setResource(vs));
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            FhirContext.forR4().newJsonParser().encodeResourceToWriter(bundle, writer);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        persisted.set(successful.size());
+        logger.info("Saved {} ValueSet expansions to {}", successful.size(), file);
+    }
+}
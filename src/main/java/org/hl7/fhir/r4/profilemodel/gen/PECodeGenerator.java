@@ -29,14 +29,31 @@ package org.hl7.fhir.r4.profilemodel.gen;
   */
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.LinkedHashSet;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.hl7.fhir.r4.context.IWorkerContext;
 import org.hl7.fhir.r4.model.ElementDefinition;
@@ -51,8 +68,9 @@ import org.hl7.fhir.r4.profilemodel.PEDefinition;
 import org.hl7.fhir.r4.profilemodel.PEType;
 import org.hl7.fhir.r4.terminologies.ValueSetExpander.ValueSetExpansionOutcome;
 import org.hl7.fhir.utilities.CommaSeparatedStringBuilder;
-import org.hl7.fhir.utilities.FileUtilities;
 import org.hl7.fhir.utilities.Utilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
@@ -80,6 +98,24 @@ import org.hl7.fhir.utilities.Utilities;
 
 public class PECodeGenerator {
 
+    private static final Logger logger = LoggerFactory.getLogger(PECodeGenerator.class);
+
+
+    /**
+     * The class generated next to the profile classes, that caches the profile definitions they work with
+     */
+    public static final String SUPPORT_CLASS = "PEGeneratedSupport";
+
+    /**
+     * The number of codes per static initializer method of a generated enum
+     */
+    static final int ENUM_CHUNK_SIZE = 500;
+
+    /**
+     * Every enum constant adds 16 bytes to the enum's static initializer, which can't exceed the JVM method size limit
+     * of 64 KB. This leaves room for the rest of the initializer
+     */
+    public static final int DEFAULT_MAX_ENUM_CODES = 4000;
 
     public static final String DEFAULT_DATE() {
         SimpleDateFormat sdf = new SimpleDateFormat("EEE, MMM d, yyyy HH:mmZ", new Locale("en", "US"));
@@ -92,13 +128,44 @@ public class PECodeGenerator {
         None, Complexes, Primitives;
     }
 
+    /**
+     * How a field is written to and read from FHIR JSON by the generated codec
+     */
+    private enum JsonKind {
+        BOOLEAN, INT, DECIMAL, STRING, CODE, COMPLEX, COMPLEX_ENUM;
+    }
+
+    /**
+     * A field of a generated resource class as it appears in FHIR JSON
+     *
+     * @param property  The JSON property, "extension" for extensions
+     * @param name      The name of the field
+     * @param type      The type of the field, or of its items
+     * @param ptype     The Java type of primitive fields
+     * @param valueType The FHIR type of the value, which enums are converted to
+     * @param url       The extension URL, or null
+     * @param accessor  The name of the model class accessors the field is read back through, e.g. Identifier for getIdentifier
+     * @param index     The index of the field in the class's bit sets
+     */
+    private record JsonField(String property, String name, String type, String ptype, JsonKind kind, boolean isList, String valueType, String url, String accessor, int index) {
+    }
+
     private class PEGenClass {
         private String name;
         private String base;
         private String doco;
         private String url;
         private boolean isResource;
-        private Set<String> unfixed = new HashSet<>();
+        private Class<?> modelClass;
+        private boolean fallback;
+        private boolean lazy;
+        private boolean tracking;
+        private boolean validating;
+        private Class<?> jsonModel;
+        private boolean jsonFallback;
+        private List<JsonField> jsonFields = new ArrayList<>();
+        private int fieldIndex = -1;
+        private Set<String> unfixed = new TreeSet<>();
         private Set<String> enumNames = new HashSet<>();
 
         private StringBuilder inits = new StringBuilder();
@@ -110,16 +177,66 @@ public class PECodeGenerator {
         private StringBuilder copy = new StringBuilder();
         private StringBuilder accessors = new StringBuilder();
         private StringBuilder hash = new StringBuilder();
+        private StringBuilder loadDirect = new StringBuilder();
+        private StringBuilder saveDirect = new StringBuilder();
+        private StringBuilder lazyLoads = new StringBuilder();
+        private StringBuilder ensureAll = new StringBuilder();
+        private StringBuilder validate = new StringBuilder();
+        // the sections that grow with the size of the profile's ValueSets and the number of its fields
+        private Spill spilledEnums = new Spill();
+        private Spill spilledAccessors = new Spill();
+
+        /**
+         * Moves the enums and accessors generated so far to temporary files, once they grew large
+         */
+        private void spill() throws IOException {
+            spilledEnums.take(enums);
+            spilledAccessors.take(accessors);
+        }
+
+        private boolean hasEnums() {
+            return !spilledEnums.isEmpty() || enums.length() > 0;
+        }
+
+        private void discard() throws IOException {
+            spilledEnums.delete();
+            spilledAccessors.delete();
+        }
+
         public void genId() {
             if (isResource) {
                 genField(true, "id", "String", "id", "", false, "", 0, 1, null);
                 genAccessors(true, false, "id", "id", "String", "", "String", "String", "Id", "Ids", false, "", false, false, null);
+                int loadMark = load.length();
                 genLoad(true, false, "id", "id", "id", "IdType", "", "String", "String", "Id", "Ids", false, false, null, false);
+                if (lazy) {
+                    lazyLoad(loadMark, "Id");
+                }
+                if (jsonModel != null) {
+                    jsonFields.add(new JsonField("id", "id", "IdType", "String", JsonKind.STRING, false, "id", null, "Id", fieldIndex));
+                }
+                int saveMark = save.length();
                 genSave(true, false, "id", "id", "id", "IdType", "", "String", "String", "Id", "Ids", false, false, false, null, false);
+                if (tracking) {
+                    saveIfDirty(saveMark);
+                }
+                if (modelClass != null) {
+                    w(loadDirect, "    if (res.hasIdElement()) {");
+                    w(loadDirect, "      id = res.getIdElement().getValue();");
+                    w(loadDirect, "    }");
+                    w(saveDirect, "    res.setIdElement(null);");
+                    w(saveDirect, "    if (id != null) {");
+                    w(saveDirect, "      res.setIdElement(new IdType(id));");
+                    w(saveDirect, "    }");
+                }
                 genClear(false, "id", "String");
             }
         }
-        public void write(StringBuilder b, String copyright) {
+        /**
+         * Streams the class to out. The small parts are collected in b, which is flushed before each of the sections is
+         * copied across, so that no section is copied into another buffer
+         */
+        public void write(StringBuilder b, Writer out, String copyright) throws IOException {
             w(b);
             if (copyright != null) {
                 w(b, "/*");
@@ -127,7 +244,11 @@ public class PECodeGenerator {
                 w(b, " */");
                 w(b);
             }
-            w(b, "// Generated by the HAPI Java Profile Generator, "+genDate);
+            if (genDate == null) {
+                w(b, "// Generated by the HAPI Java Profile Generator");
+            } else {
+                w(b, "// Generated by the HAPI Java Profile Generator, "+genDate);
+            }
             w(b);
             jdoc(b, doco, 0, true);
             w(b, "public class "+name+" extends PEGeneratedBase {");
@@ -136,10 +257,25 @@ public class PECodeGenerator {
                 w(b, "  public static final String CANONICAL_URL = \""+url+"\";");
                 w(b);
             }
-            if (enums.length() > 0) {
-                w(b, enums.toString());
+            if (hasEnums()) {
+                section(b, out, spilledEnums, enums);
+            }
+            section(b, out, fields);
+            if (lazy || tracking) {
+                w(b, "  private Base source;");
+            }
+            if (lazy) {
+                w(b, "  private final java.util.BitSet loaded = new java.util.BitSet();");
+            }
+            if (tracking) {
+                w(b, "  private final java.util.BitSet dirty = new java.util.BitSet();");
+            }
+            if (validating) {
+                w(b, "  private final java.util.BitSet unbound = new java.util.BitSet();");
+            }
+            if (lazy || tracking || validating) {
+                w(b);
             }
-            w(b, fields.toString());
             if (unfixed.isEmpty()) {
                 jdoc(b, "Parameter-less constructor.", 2, true);
             } else {
@@ -158,9 +294,12 @@ public class PECodeGenerator {
                     w(b, "    initFixedValues();");
                 }
                 w(b, "    workerContext = context;");
-                w(b, "    PEBuilder builder = new PEBuilder(context, PEElementPropertiesPolicy.EXTENSION, true);");
-                w(b, "    PEInstance src = builder.buildPEInstance(CANONICAL_URL, builder.createResource(CANONICAL_URL, false));");
-                w(b, "    load(src);");
+                if (modelClass != null) {
+                    w(b, "    loadDirect(("+modelClass.getSimpleName()+") "+SUPPORT_CLASS+".createResource(context, CANONICAL_URL));");
+                } else {
+                    w(b, "    PEInstance src = "+SUPPORT_CLASS+".instance(context, CANONICAL_URL, "+SUPPORT_CLASS+".createResource(context, CANONICAL_URL));");
+                    w(b, "    load(src);");
+                }
                 w(b, "  }");
                 w(b);
                 jdoc(b, "Populate an instance of the object based on this source object ", 2, true);
@@ -170,9 +309,12 @@ public class PECodeGenerator {
                     w(b, "  public static "+name+" fromSource(IWorkerContext context, "+base+" source) {");
                 w(b, "    "+name+" theThing = new "+name+"();");
                 w(b, "    theThing.workerContext = context;");
-                w(b, "    PEBuilder builder = new PEBuilder(context, PEElementPropertiesPolicy.EXTENSION, true);");
-                w(b, "    PEInstance src = builder.buildPEInstance(CANONICAL_URL, source);");
-                w(b, "    theThing.load(src);");
+                if (modelClass != null) {
+                    w(b, "    theThing.loadDirect(source);");
+                } else {
+                    w(b, "    PEInstance src = "+SUPPORT_CLASS+".instance(context, CANONICAL_URL, source);");
+                    w(b, "    theThing.load(src);");
+                }
                 w(b, "    return theThing;");
                 w(b, "  }");
                 w(b);
@@ -186,9 +328,20 @@ public class PECodeGenerator {
                 w(b, "  }");
             }
             w(b);
+            if (lazy) {
+                jdoc(b, "Keeps the source element, and only loads each element from it when it is first accessed. The profile view of the source is built again on the thread that accesses it, as the profile definitions are confined to one thread", 2, true);
+            }
             w(b, "  public void load(PEInstance src) {");
             w(b, "    clear();");
-            w(b, load.toString());
+            if (lazy) {
+                w(b, "    workerContext = src.getContext();");
+                w(b, "    source = src.data();");
+            } else {
+                section(b, out, load);
+                if (tracking) {
+                    w(b, "    source = src.data();");
+                }
+            }
             w(b, "  }");
             w(b);
 
@@ -207,13 +360,25 @@ public class PECodeGenerator {
                     w(b, "  public "+base+"Resource build() {");
                 else
                     w(b, "  public "+base+" build() {");
+                if (tracking) {
+                    String model = base.equalsIgnoreCase("List") ? base+"Resource" : base;
+                    w(b, "    if (source != null) {");
+                    w(b, "      // start from the loaded resource, so that only the modified elements need to be written");
+                    w(b, "      "+model+" copy = ("+model+") source.copy();");
+                    w(b, "      save("+SUPPORT_CLASS+".instance(workerContext, CANONICAL_URL, copy), false, false);");
+                    w(b, "      return copy;");
+                    w(b, "    }");
+                }
                 if(base.equalsIgnoreCase("List"))
                     w(b, "    "+base+"Resource theThing = new "+base+"Resource();");
                 else
                     w(b, "    "+base+" theThing = new "+base+"();");
-                w(b, "    PEBuilder builder = new PEBuilder(workerContext, PEElementPropertiesPolicy.EXTENSION, true);");
-                w(b, "    PEInstance tgt = builder.buildPEInstance(CANONICAL_URL, theThing);");
-                w(b, "    save(tgt, false);");
+                if (modelClass != null) {
+                    w(b, "    saveDirect(theThing, false);");
+                } else {
+                    w(b, "    PEInstance tgt = "+SUPPORT_CLASS+".instance(workerContext, CANONICAL_URL, theThing);");
+                    w(b, "    save(tgt, false);");
+                }
                 w(b, "    return theThing;");
                 w(b, "  }");
                 w(b);
@@ -223,148 +388,491 @@ public class PECodeGenerator {
                 else
                     w(b, "  public void save(IWorkerContext context, "+base+" dest, boolean nulls) {");
                 w(b, "    workerContext = context;");
-                w(b, "    PEBuilder builder = new PEBuilder(context, PEElementPropertiesPolicy.EXTENSION, true);");
-                w(b, "    PEInstance tgt = builder.buildPEInstance(CANONICAL_URL, dest);");
-                w(b, "    save(tgt, nulls);");
+                if (modelClass != null) {
+                    w(b, "    saveDirect(dest, nulls);");
+                } else {
+                    w(b, "    PEInstance tgt = "+SUPPORT_CLASS+".instance(context, CANONICAL_URL, dest);");
+                    w(b, "    save(tgt, nulls);");
+                }
+                w(b, "  }");
+                w(b);
+                writeBulk(b);
+                if (jsonModel != null) {
+                    writeJsonCodec(b);
+                }
+            }
+            if (tracking) {
+                jdoc(b, "Saving into the loaded source only writes the elements modified since it was loaded", 2, true);
+                w(b, "  public void save(PEInstance tgt, boolean nulls) {");
+                w(b, "    boolean all = source == null || tgt.data() != source;");
+                w(b, "    save(tgt, nulls, all);");
+                w(b, "    if (!all) {");
+                w(b, "      dirty.clear();");
+                w(b, "    }");
                 w(b, "  }");
                 w(b);
+                w(b, "  private void save(PEInstance tgt, boolean nulls, boolean all) {");
+                if (lazy) {
+                    w(b, "    if (all) {");
+                    w(b, "      ensureLoaded();");
+                    w(b, "    }");
+                }
+            } else {
+                w(b, "  public void save(PEInstance tgt, boolean nulls) {");
+                if (lazy) {
+                    w(b, "    ensureLoaded();");
+                }
             }
-            w(b, "  public void save(PEInstance tgt, boolean nulls) {");
-            w(b, save.toString());
+            section(b, out, save);
             w(b, "  }");
             w(b);
+            if (modelClass != null) {
+                String model = modelClass.getSimpleName();
+                w(b, "  private void loadDirect("+model+" res) {");
+                w(b, "    clear();");
+                if (fallback) {
+                    w(b, "    PEInstance src = "+SUPPORT_CLASS+".instance(workerContext, CANONICAL_URL, res);");
+                }
+                section(b, out, loadDirect);
+                w(b, "  }");
+                w(b);
+                w(b, "  private void saveDirect("+model+" res, boolean nulls) {");
+                if (fallback) {
+                    w(b, "    PEInstance tgt = "+SUPPORT_CLASS+".instance(workerContext, CANONICAL_URL, res);");
+                }
+                section(b, out, saveDirect);
+                w(b, "  }");
+                w(b);
+            }
             if (inits.length() > 0) {
                 w(b, "  private void initFixedValues() {");
-                w(b, inits.toString());
+                section(b, out, inits);
                 w(b, "  }");
                 w(b);
             }
-            w(b, accessors.toString());
+            section(b, out, spilledAccessors, accessors);
             w(b);
+            if (lazy) {
+                section(b, out, lazyLoads);
+                w(b, "  private void ensureLoaded() {");
+                section(b, out, ensureAll);
+                w(b, "  }");
+                w(b);
+            }
+            if (validating) {
+                jdoc(b, "Check the cardinalities, fixed values and required bindings of the profile, without the instance validator. Invariants, slicing, the bindings of ValueSets that weren't generated as enums and anything else the generated fields don't capture still need the validator", 2, true);
+                w(b, "  public List<"+SUPPORT_CLASS+".Issue> validate() {");
+                if (lazy) {
+                    w(b, "    ensureLoaded();");
+                }
+                w(b, "    List<"+SUPPORT_CLASS+".Issue> validationIssues = new ArrayList<>();");
+                section(b, out, validate);
+                w(b, "    return validationIssues;");
+                w(b, "  }");
+                w(b);
+            }
             w(b, "  public void clear() {");
-            w(b, clear.toString());
+            section(b, out, clear);
+            if (lazy || tracking) {
+                w(b, "    source = null;");
+            }
+            if (lazy) {
+                w(b, "    loaded.clear();");
+            }
+            if (tracking) {
+                w(b, "    dirty.clear();");
+            }
+            if (validating) {
+                w(b, "    unbound.clear();");
+            }
             w(b, "  }");
             w(b);
             w(b, "}");
+            flush(b, out);
+        }
+
+        /**
+         * Writes the bulk conversions, which convert one resource at a time as their result is consumed. The profile
+         * definition is resolved once for all of them (per thread, when run on an executor)
+         */
+        private void writeBulk(StringBuilder b) {
+            String model = base.equalsIgnoreCase("List") ? base+"Resource" : base;
+            jdoc(b, "Convert the resources as the stream is consumed", 2, true);
+            w(b, "  public static Stream<"+name+"> fromSources(IWorkerContext context, Stream<"+model+"> sources) {");
+            w(b, "    return sources.map(source -> fromSource(context, source));");
+            w(b, "  }");
+            w(b);
+            jdoc(b, "Convert the resources on the executor, with at most window conversions in flight, in the order of the input", 2, true);
+            w(b, "  public static Stream<"+name+"> fromSources(IWorkerContext context, Stream<"+model+"> sources, ExecutorService executor, int window) {");
+            w(b, "    return "+SUPPORT_CLASS+".map(sources, source -> fromSource(context, source), executor, window);");
+            w(b, "  }");
+            w(b);
+            jdoc(b, "Convert the "+model+" resources in the bundle", 2, true);
+            w(b, "  public static List<"+name+"> fromBundle(IWorkerContext context, Bundle bundle) {");
+            w(b, "    List<"+name+"> result = new ArrayList<>();");
+            w(b, "    for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {");
+            w(b, "      if (entry.getResource() instanceof "+model+") {");
+            w(b, "        result.add(fromSource(context, ("+model+") entry.getResource()));");
+            w(b, "      }");
+            w(b, "    }");
+            w(b, "    return result;");
+            w(b, "  }");
+            w(b);
+            jdoc(b, "Convert the resources in an NDJSON file, reading one line at a time as the stream is consumed. The stream must be closed", 2, true);
+            w(b, "  public static Stream<"+name+"> fromNdjson(IWorkerContext context, Path file) throws IOException {");
+            w(b, "    return "+SUPPORT_CLASS+".lines(file).map(line -> fromSource(context, "+SUPPORT_CLASS+".parse(line, "+model+".class)));");
+            w(b, "  }");
+            w(b);
+            jdoc(b, "Parse and convert the resources in an NDJSON file on the executor, with at most window lines in flight, in the order of the file. The stream must be closed", 2, true);
+            w(b, "  public static Stream<"+name+"> fromNdjson(IWorkerContext context, Path file, ExecutorService executor, int window) throws IOException {");
+            w(b, "    return "+SUPPORT_CLASS+".map("+SUPPORT_CLASS+".lines(file), line -> fromSource(context, "+SUPPORT_CLASS+".parse(line, "+model+".class)), executor, window);");
+            w(b, "  }");
+            w(b);
+            jdoc(b, "Build the resources as the stream is consumed", 2, true);
+            w(b, "  public static Stream<"+model+"> buildAll(IWorkerContext context, Stream<"+name+"> models) {");
+            w(b, "    return models.map(m -> m.build(context));");
+            w(b, "  }");
+            w(b);
+            jdoc(b, "Build the resources on the executor, with at most window builds in flight, in the order of the input", 2, true);
+            w(b, "  public static Stream<"+model+"> buildAll(IWorkerContext context, Stream<"+name+"> models, ExecutorService executor, int window) {");
+            w(b, "    return "+SUPPORT_CLASS+".map(models, m -> m.build(context), executor, window);");
+            w(b, "  }");
+            w(b);
+        }
+
+        /**
+         * Writes the FHIR JSON codec of the resource class. writeJson streams the fields with Jackson, in the order the HAPI
+         * parser writes the elements of the resource, so that the output is the same as encoding the result of build().
+         * Complex values are encoded by the HAPI parser one at a time; fromJson reads the simple fields as they come, and
+         * collects the complex ones to parse them with the HAPI parser in one go
+         */
+        private void writeJsonCodec(StringBuilder b) {
+            String model = base.equalsIgnoreCase("List") ? base+"Resource" : base;
+            List<String> order = jsonOrder();
+            if (jsonFallback || order == null || jsonFields.stream().anyMatch(f -> !order.contains(f.property()))) {
+                writeJsonFallback(b, model);
+                return;
+            }
+            List<JsonField> fields = new ArrayList<>(jsonFields);
+            fields.sort(Comparator.comparingInt(f -> order.indexOf(f.property())));
+            List<JsonField> extensions = fields.stream().filter(f -> f.url() != null).toList();
+
+            jdoc(b, "Write the resource as FHIR JSON, the same as the HAPI parser writes the result of build()", 2, true);
+            w(b, "  public void writeJson(JsonGenerator json) throws IOException {");
+            if (lazy) {
+                w(b, "    ensureLoaded();");
+            }
+            w(b, "    json.writeStartObject();");
+            w(b, "    json.writeStringField(\"resourceType\", \""+base+"\");");
+            boolean extensionsWritten = false;
+            for (JsonField f : fields) {
+                if (f.url() == null) {
+                    writeJsonField(b, f);
+                } else if (!extensionsWritten) {
+                    writeJsonExtensions(b, extensions);
+                    extensionsWritten = true;
+                }
+            }
+            w(b, "    json.writeEndObject();");
+            w(b, "  }");
+            w(b);
+            writeJsonConvenience(b);
+            jdoc(b, "Read the resource from FHIR JSON, the same as fromSource reads the resource the HAPI parser reads", 2, true);
+            w(b, "  public static "+name+" fromJson(IWorkerContext context, JsonParser json) throws IOException {");
+            w(b, "    "+name+" theThing = new "+name+"();");
+            w(b, "    theThing.workerContext = context;");
+            w(b, "    theThing.readJson(json);");
+            w(b, "    return theThing;");
+            w(b, "  }");
+            w(b);
+            w(b, "  private void readJson(JsonParser json) throws IOException {");
+            w(b, "    clear();");
+            w(b, "    if (json.currentToken() == null) {");
+            w(b, "      json.nextToken();");
+            w(b, "    }");
+            w(b, "    if (json.currentToken() != JsonToken.START_OBJECT) {");
+            w(b, "      throw new IOException(\"Expected a JSON object, not \"+json.currentToken());");
+            w(b, "    }");
+            w(b, "    StringWriter rest = null;");
+            w(b, "    JsonGenerator restJson = null;");
+            w(b, "    while (json.nextToken() == JsonToken.FIELD_NAME) {");
+            w(b, "      String property = json.currentName();");
+            w(b, "      json.nextToken();");
+            w(b, "      switch (property) {");
+            w(b, "      case \"resourceType\":");
+            w(b, "        if (!\""+base+"\".equals(json.getText())) {");
+            w(b, "          throw new IOException(\"Expected a "+base+" resource, not \"+json.getText());");
+            w(b, "        }");
+            w(b, "        break;");
+            Set<String> complex = new LinkedHashSet<>();
+            for (JsonField f : fields) {
+                if (f.url() != null || f.kind() == JsonKind.COMPLEX || f.kind() == JsonKind.COMPLEX_ENUM) {
+                    complex.add(f.property());
+                    continue;
+                }
+                w(b, "      case \""+f.property()+"\":");
+                switch (f.kind()) {
+                    case BOOLEAN -> w(b, "        "+f.name()+" = json.getBooleanValue();");
+                    case INT -> w(b, "        "+f.name()+" = json.getIntValue();");
+                    case DECIMAL -> w(b, "        "+f.name()+" = json.getDecimalValue();");
+                    case CODE -> {
+                        w(b, "        "+f.name()+" = "+f.type()+".fromCode(json.getText());");
+                        checkBound(b, "        ", f.name(), f.index());
+                    }
+                    default -> w(b, "        "+f.name()+" = new "+f.type()+"(json.getText()).getValue();");
+                }
+                w(b, "        break;");
+            }
+            for (String property : complex) {
+                w(b, "      case \""+property+"\":");
+            }
+            if (!complex.isEmpty()) {
+                w(b, "        if (restJson == null) {");
+                w(b, "          rest = new StringWriter();");
+                w(b, "          restJson = "+SUPPORT_CLASS+".JSON.createGenerator(rest);");
+                w(b, "          restJson.writeStartObject();");
+                w(b, "          restJson.writeStringField(\"resourceType\", \""+base+"\");");
+                w(b, "        }");
+                w(b, "        restJson.writeFieldName(property);");
+                w(b, "        restJson.copyCurrentStructure(json);");
+                w(b, "        break;");
+            }
+            w(b, "      default:");
+            w(b, "        json.skipChildren();");
+            w(b, "      }");
+            w(b, "    }");
+            w(b, "    if (restJson != null) {");
+            w(b, "      restJson.writeEndObject();");
+            w(b, "      restJson.close();");
+            w(b, "      "+model+" res = "+SUPPORT_CLASS+".parse(rest.toString(), "+model+".class);");
+            for (JsonField f : fields) {
+                if (f.url() != null) {
+                    readJsonExtension(b, f);
+                } else if (f.kind() == JsonKind.COMPLEX || f.kind() == JsonKind.COMPLEX_ENUM) {
+                    w(b, "      if (res.has"+f.accessor()+"()) {");
+                    if (f.isList()) {
+                        w(b, "        "+f.name()+".addAll(res.get"+f.accessor()+"());");
+                    } else if (f.kind() == JsonKind.COMPLEX_ENUM) {
+                        w(b, "        "+f.name()+" = "+f.type()+".from"+f.valueType()+"(res.get"+f.accessor()+"());");
+                        checkBound(b, "        ", f.name(), f.index());
+                    } else {
+                        w(b, "        "+f.name()+" = res.get"+f.accessor()+"();");
+                    }
+                    w(b, "      }");
+                }
+            }
+            w(b, "    }");
+            w(b, "  }");
+            w(b);
+        }
+
+        /**
+         * @return The names of the elements of the resource, in the order the HAPI parser writes them
+         */
+        private List<String> jsonOrder() {
+            try {
+                return ((org.hl7.fhir.r4.model.Base) jsonModel.getConstructor().newInstance()).children().stream().map(p -> p.getName()).toList();
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        private void writeJsonField(StringBuilder b, JsonField f) {
+            if (f.isList()) {
+                w(b, "    if ("+SUPPORT_CLASS+".hasContent("+f.name()+")) {");
+                w(b, "      json.writeArrayFieldStart(\""+f.property()+"\");");
+                w(b, "      for ("+f.type()+" item : "+f.name()+") {");
+                w(b, "        if (!item.isEmpty()) {");
+                w(b, "          json.writeRawValue("+SUPPORT_CLASS+".encode(item));");
+                w(b, "        }");
+                w(b, "      }");
+                w(b, "      json.writeEndArray();");
+                w(b, "    }");
+                return;
+            }
+            String condition = switch (f.kind()) {
+                case BOOLEAN -> null;
+                case INT -> f.name()+" != 0";
+                case COMPLEX -> f.name()+" != null && !"+f.name()+".isEmpty()";
+                default -> f.name()+" != null";
+            };
+            if (condition == null) {
+                writeJsonValue(b, "    ", f.property(), f, f.name());
+            } else {
+                w(b, "    if ("+condition+") {");
+                writeJsonValue(b, "      ", f.property(), f, f.name());
+                w(b, "    }");
+            }
+        }
+
+        /**
+         * Writes the extension fields into one array, in the order save() adds them to the resource
+         */
+        private void writeJsonExtensions(StringBuilder b, List<JsonField> extensions) {
+            List<String> conditions = new ArrayList<>();
+            for (JsonField f : extensions) {
+                conditions.add(f.isList() ? "!"+f.name()+".isEmpty()" : f.kind() == JsonKind.BOOLEAN ? "true" : f.kind() == JsonKind.INT ? f.name()+" != 0" : f.name()+" != null");
+            }
+            boolean always = conditions.contains("true");
+            String pfx = always ? "    " : "      ";
+            if (!always) {
+                w(b, "    if ("+String.join(" || ", conditions)+") {");
+            }
+            w(b, pfx+"json.writeArrayFieldStart(\"extension\");");
+            for (int i = 0; i < extensions.size(); i++) {
+                JsonField f = extensions.get(i);
+                String key = "value"+Utilities.capitalize(f.valueType());
+                if (f.isList()) {
+                    w(b, pfx+"for ("+f.type()+" item : "+f.name()+") {");
+                    w(b, pfx+"  json.writeStartObject();");
+                    w(b, pfx+"  json.writeStringField(\"url\", "+literal(f.url())+");");
+                    w(b, pfx+"  if (!item.isEmpty()) {");
+                    writeJsonValue(b, pfx+"    ", key, f, "item");
+                    w(b, pfx+"  }");
+                    w(b, pfx+"  json.writeEndObject();");
+                    w(b, pfx+"}");
+                } else {
+                    boolean conditional = !"true".equals(conditions.get(i));
+                    String ipfx = conditional ? pfx+"  " : pfx;
+                    if (conditional) {
+                        w(b, pfx+"if ("+conditions.get(i)+") {");
+                    }
+                    w(b, ipfx+"json.writeStartObject();");
+                    w(b, ipfx+"json.writeStringField(\"url\", "+literal(f.url())+");");
+                    if (f.kind() == JsonKind.COMPLEX) {
+                        w(b, ipfx+"if (!"+f.name()+".isEmpty()) {");
+                        writeJsonValue(b, ipfx+"  ", key, f, f.name());
+                        w(b, ipfx+"}");
+                    } else {
+                        writeJsonValue(b, ipfx, key, f, f.name());
+                    }
+                    w(b, ipfx+"json.writeEndObject();");
+                    if (conditional) {
+                        w(b, pfx+"}");
+                    }
+                }
+            }
+            w(b, pfx+"json.writeEndArray();");
+            if (!always) {
+                w(b, "    }");
+            }
+        }
+
+        private void writeJsonValue(StringBuilder b, String pfx, String key, JsonField f, String value) {
+            switch (f.kind()) {
+                case BOOLEAN -> w(b, pfx+"json.writeBooleanField(\""+key+"\", "+value+");");
+                case INT -> w(b, pfx+"json.writeNumberField(\""+key+"\", "+value+");");
+                case DECIMAL -> {
+                    w(b, pfx+"json.writeFieldName(\""+key+"\");");
+                    w(b, pfx+"json.writeNumber(new DecimalType("+value+").getValueAsString());");
+                }
+                case STRING -> {
+                    if (f.url() == null && "id".equals(f.property())) {
+                        // the parser only writes the logical id
+                        w(b, pfx+"json.writeStringField(\"id\", new IdType("+value+").getIdPart());");
+                    } else {
+                        w(b, pfx+"json.writeStringField(\""+key+"\", new "+f.type()+"("+value+").getValueAsString());");
+                    }
+                }
+                case CODE -> w(b, pfx+"json.writeStringField(\""+key+"\", "+value+".toCode());");
+                case COMPLEX_ENUM -> {
+                    w(b, pfx+"json.writeFieldName(\""+key+"\");");
+                    w(b, pfx+"json.writeRawValue("+SUPPORT_CLASS+".encode("+value+".to"+f.valueType()+"()));");
+                }
+                default -> {
+                    w(b, pfx+"json.writeFieldName(\""+key+"\");");
+                    w(b, pfx+"json.writeRawValue("+SUPPORT_CLASS+".encode("+value+"));");
+                }
+            }
+        }
+
+        private void readJsonExtension(StringBuilder b, JsonField f) {
+            w(b, "      for (Extension ext : res.getExtensionsByUrl("+literal(f.url())+")) {");
+            w(b, "        if (ext.getValue() instanceof "+f.type()+") {");
+            if (f.isList()) {
+                w(b, "          "+f.name()+".add(("+f.type()+") ext.getValue());");
+                w(b, "        }");
+            } else {
+                if (f.kind() == JsonKind.COMPLEX) {
+                    w(b, "          "+f.name()+" = ("+f.type()+") ext.getValue();");
+                } else if ("CodeType".equals(f.type())) {
+                    w(b, "          "+f.name()+" = ext.getValue().primitiveValue();");
+                } else {
+                    w(b, "          "+f.name()+" = (("+f.type()+") ext.getValue()).getValue();");
+                }
+                w(b, "        }");
+                w(b, "        break;");
+            }
+            w(b, "      }");
+        }
+
+        /**
+         * The codec of classes with elements it can't stream goes through build(), fromSource() and the HAPI parser
+         */
+        private void writeJsonFallback(StringBuilder b, String model) {
+            jdoc(b, "Write the resource as FHIR JSON. This profile has elements that can't be streamed, so this builds the resource and encodes it with the HAPI parser", 2, true);
+            w(b, "  public void writeJson(JsonGenerator json) throws IOException {");
+            w(b, "    json.writeRawValue("+SUPPORT_CLASS+".encode(build()));");
+            w(b, "  }");
+            w(b);
+            writeJsonConvenience(b);
+            jdoc(b, "Read the resource from FHIR JSON with the HAPI parser", 2, true);
+            w(b, "  public static "+name+" fromJson(IWorkerContext context, JsonParser json) throws IOException {");
+            w(b, "    if (json.currentToken() == null) {");
+            w(b, "      json.nextToken();");
+            w(b, "    }");
+            w(b, "    StringWriter text = new StringWriter();");
+            w(b, "    try (JsonGenerator copy = "+SUPPORT_CLASS+".JSON.createGenerator(text)) {");
+            w(b, "      copy.copyCurrentStructure(json);");
+            w(b, "    }");
+            w(b, "    return fromSource(context, "+SUPPORT_CLASS+".parse(text.toString(), "+model+".class));");
+            w(b, "  }");
+            w(b);
+        }
+
+        private void writeJsonConvenience(StringBuilder b) {
+            w(b, "  public String toJson() throws IOException {");
+            w(b, "    StringWriter out = new StringWriter();");
+            w(b, "    try (JsonGenerator json = "+SUPPORT_CLASS+".JSON.createGenerator(out)) {");
+            w(b, "      writeJson(json);");
+            w(b, "    }");
+            w(b, "    return out.toString();");
+            w(b, "  }");
+            w(b);
+            w(b, "  public static "+name+" fromJson(IWorkerContext context, String json) throws IOException {");
+            w(b, "    try (JsonParser parser = "+SUPPORT_CLASS+".JSON.createParser(json)) {");
+            w(b, "      return fromJson(context, parser);");
+            w(b, "    }");
+            w(b, "  }");
+            w(b);
         }
 
-        private String generateEnum(PEDefinition source, PEDefinition field) {
+        private String generateEnum(PEDefinition source, PEDefinition field) throws IOException {
             if (field.definition().hasBinding() && !field.hasFixedValue()) {
                 ElementDefinitionBindingComponent binding = field.definition().getBinding();
                 if (binding.getStrength() == org.hl7.fhir.r4.model.Enumerations.BindingStrength.REQUIRED && binding.hasValueSet()) {
                     org.hl7.fhir.r4.model.ValueSet vs = workerContext.fetchResource(org.hl7.fhir.r4.model.ValueSet.class, binding.getValueSet());
                     if (vs != null) {
-                        ValueSetExpansionOutcome vse = workerContext.expandVS(vs, false, false);
-                        Set<String> codes = new HashSet<>();
-                        boolean hasDups = false;
-                        if (vse.isOk()) {
-                            String baseName = Utilities.nmtokenize(Utilities.singularise(vs.getName()));
-                            String name = baseName;
-                            if (workerContext.getResourceNames().contains(name)) {
-                                name = name+"Type";
-                            }
+                        ValueSetExpansionOutcome vse;
+                        try (var phase = profiler.begin("expandValueSets")) {
+                            vse = expansionProvider.expand(workerContext, vs);
+                        }
+                        int size = vse.isOk() ? vse.getValueset().getExpansion().getContains().size() : 0;
+                        if (size > maxEnumCodes) {
+                            logger.warn("{} in {} is bound to {}, which has {} codes, more than the {} generated as enums; generating it as a plain code", field.definition().getId(), canonical, vs.getUrl(), size, maxEnumCodes);
+                        } else if (vse.isOk()) {
+                            String baseName = SharedEnums.baseName(vs);
+                            String name = SharedEnums.enumName(workerContext, baseName);
                             int c = 0;
-                            while (enumNames.contains(name)) {
+                            while (sharedEnums == null && enumNames.contains(name)) {
                                 c++;
                                 name = baseName+c;
                             }
-                            w(enums, "  public enum "+name+" {");
-                            for (int i = 0; i < vse.getValueset().getExpansion().getContains().size(); i++) {
-                                ValueSetExpansionContainsComponent cc = vse.getValueset().getExpansion().getContains().get(i);
-                                String code = Utilities.javaTokenize(cc.getCode(), true).toUpperCase();
-                                if (Utilities.isInteger(code)) {
-                                    code = "C_"+code;
-                                }
-                                if (cc.getAbstract()) {
-                                    code = "_"+code;
-                                }
-                                if (codes.contains(code)) {
-                                    char sfx = 'A';
-                                    while (codes.contains(code+sfx)) {
-                                        sfx++;
-                                    }
-                                    code = code + sfx;
-                                    hasDups = true;
-                                }
-                                codes.add(code);
-                                cc.setUserData("java.code", code);
-                                w(enums, "    "+code+(i < vse.getValueset().getExpansion().getContains().size() - 1 ? "," : ";")+" // \""+cc.getDisplay()+"\" = "+cc.getSystem()+"#"+cc.getCode());
-                            }
-                            w(enums, "");
-                            if (!hasDups) {
-                                w(enums, "    public static "+name+" fromCode(String s) {");
-                                w(enums, "      switch (s) {");
-                                for (ValueSetExpansionContainsComponent cc : vse.getValueset().getExpansion().getContains()) {
-                                    w(enums, "      case \""+cc.getCode()+"\": return "+cc.getUserString("java.code")+";");
-                                }
-                                w(enums, "      default: return null;");
-                                w(enums, "      }");
-                                w(enums, "    }");
-                                w(enums, "");
-                            }
-                            w(enums, "    public static "+name+" fromCoding(Coding c) {");
-                            for (ValueSetExpansionContainsComponent cc : vse.getValueset().getExpansion().getContains()) {
-                                if (cc.hasVersion()) {
-                                    w(enums, "      if (\""+cc.getSystem()+"\".equals(c.getSystem()) && \""+cc.getCode()+"\".equals(c.getCode()) && (!c.hasVersion() || \""+cc.getVersion()+"\".equals(c.getVersion()))) {");
-                                } else {
-                                    w(enums, "      if (\""+cc.getSystem()+"\".equals(c.getSystem()) && \""+cc.getCode()+"\".equals(c.getCode())) {");
-                                }
-                                w(enums, "        return "+cc.getUserString("java.code")+";");
-                                w(enums, "      }");
-                            }
-                            w(enums, "      return null;");
-                            w(enums, "    }");
-                            w(enums, "");
-                            w(enums, "    public static "+name+" fromCodeableConcept(CodeableConcept cc) {");
-                            w(enums, "      for (Coding c : cc.getCoding()) {");
-                            w(enums, "        "+name+" v = fromCoding(c);");
-                            w(enums, "        if (v != null) {");
-                            w(enums, "          return v;");
-                            w(enums, "        }");
-                            w(enums, "      }");
-                            w(enums, "      return null;");
-                            w(enums, "    }");
-                            w(enums, "");
-
-                            w(enums, "    public String toDisplay() {");
-                            w(enums, "      switch (this) {");
-                            for (ValueSetExpansionContainsComponent cc : vse.getValueset().getExpansion().getContains()) {
-                                w(enums, "      case "+cc.getUserString("java.code")+": return \""+Utilities.escapeJava(cc.getDisplay())+"\";");
-                            }
-                            w(enums, "      default: return null;");
-                            w(enums, "      }");
-                            w(enums, "    }");
-                            w(enums, "");
-
-                            if (!hasDups) {
-                                w(enums, "    public String toCode() {");
-                                w(enums, "      switch (this) {");
-                                for (ValueSetExpansionContainsComponent cc : vse.getValueset().getExpansion().getContains()) {
-                                    w(enums, "      case "+cc.getUserString("java.code")+": return \""+cc.getCode()+"\";");
-                                }
-                                w(enums, "      default: return null;");
-                                w(enums, "      }");
-                                w(enums, "    }");
-                                w(enums, "");
-                            }
-                            w(enums, "    public Coding toCoding() {");
-                            w(enums, "      switch (this) {");
-                            for (ValueSetExpansionContainsComponent cc : vse.getValueset().getExpansion().getContains()) {
-                                if (cc.hasVersion()) {
-                                    w(enums, "      case "+cc.getUserString("java.code")+": return new Coding().setSystem(\""+cc.getSystem()+"\").setVersion(\""+cc.getVersion()+"\").setCode()\""+cc.getCode()+"\";");
-                                } else {
-                                    w(enums, "      case "+cc.getUserString("java.code")+": return new Coding().setSystem(\""+cc.getSystem()+"\").setCode(\""+cc.getCode()+"\");");
-                                }
+                            if (sharedEnums != null) {
+                                return sharedEnum(vs, baseName, name, vse.getValueset());
                             }
-                            w(enums, "      default: return null;");
-                            w(enums, "      }");
-                            w(enums, "    }");
-                            w(enums, "");
-                            w(enums, "    public CodeableConcept toCodeableConcept() {");
-                            w(enums, "      Coding c = toCoding();");
-                            w(enums, "      return c == null ? null : new CodeableConcept().addCoding(c);");
-                            w(enums, "    }");
-                            w(enums, "  }");
+                            enumNames.add(name);
+                            writeEnum(enums, "  ", name, vse.getValueset());
                             return name;
                         }
                     }
@@ -373,7 +881,46 @@ public class PECodeGenerator {
             return null;
         }
 
-        private void defineField(PEDefinition source, PEDefinition field) {
+        /**
+         * Writes the enum for the ValueSet into the valuesets subpackage, unless another class already did so in this run
+         * @return The name this class refers to the enum by
+         */
+        private String sharedEnum(org.hl7.fhir.r4.model.ValueSet vs, String baseName, String name, org.hl7.fhir.r4.model.ValueSet expansion) throws IOException {
+            String key = vs.getUrl()+"|"+vs.getVersion();
+            String enumName = sharedEnums.nameFor(key, baseName, name);
+            if (sharedEnums.claim(key)) {
+                StringBuilder b = new StringBuilder();
+                w(b, "package "+pkgName+"."+SharedEnums.PACKAGE+";");
+                w(b);
+                if (genDate == null) {
+                    w(b, "// Generated by the HAPI Java Profile Generator");
+                } else {
+                    w(b, "// Generated by the HAPI Java Profile Generator, "+genDate);
+                }
+                w(b, SharedEnums.MARKER+key);
+                w(b);
+                w(b, "import java.util.HashMap;");
+                w(b, "import java.util.Map;");
+                w(b);
+                w(b, "import org.hl7.fhir."+version+".model.CodeableConcept;");
+                w(b, "import org.hl7.fhir."+version+".model.Coding;");
+                w(b);
+                jdoc(b, vs.getDescription(), 0, true);
+                writeEnum(b, "", enumName, expansion);
+                try (var phase = profiler.begin("write")) {
+                    writeIfChanged(sharedEnums.getDirectory().resolve(enumName+".java"), out -> flush(b, out));
+                }
+            }
+            if (enumName.equals(this.name)) {
+                return pkgName+"."+SharedEnums.PACKAGE+"."+enumName;
+            }
+            if (enumNames.add(enumName)) {
+                w(imports, "import "+pkgName+"."+SharedEnums.PACKAGE+"."+enumName+";");
+            }
+            return enumName;
+        }
+
+        private void defineField(PEDefinition source, PEDefinition field) throws IOException {
             if (field.types().size() == 1) {
                 StructureDefinition sd = workerContext.fetchTypeDefinition(field.types().get(0).getUrl());
                 if (sd != null) {
@@ -414,8 +961,30 @@ public class PECodeGenerator {
                         genFixed(name, ptype, field.getFixedValue());
                     }
                     genAccessors(isPrim, isAbstract, name, field.name(), type, init, ptype, ltype, cname, csname, field.isList(), field.documentation(), field.hasFixedValue(), isEnum, field.definition());
+                    int loadMark = load.length();
+                    int saveMark = save.length();
                     genLoad(isPrim, isAbstract, name, sname, field.name(), type, init, ptype, ltype, cname, csname, field.isList(), field.hasFixedValue(), field.types().get(0), isEnum);
                     genSave(isPrim, isAbstract, name, sname, field.name(), type, init, ptype, ltype, cname, csname, field.isList(), field.hasFixedValue(), isExtension, field.types().get(0), isEnum);
+                    if (modelClass != null && !genDirect(field, isPrim, name, type, ptype, isEnum, field.types().get(0))) {
+                        // resolved through the profile model at runtime
+                        w(loadDirect, "    // "+field.name()+": through the profile model");
+                        loadDirect.append(load, loadMark, load.length());
+                        w(saveDirect, "    // "+field.name()+": through the profile model");
+                        saveDirect.append(save, saveMark, save.length());
+                        fallback = true;
+                    }
+                    if (lazy) {
+                        lazyLoad(loadMark, cname);
+                    }
+                    if (tracking) {
+                        saveIfDirty(saveMark);
+                    }
+                    if (jsonModel != null) {
+                        jsonField(field, isPrim, name, type, ptype, isEnum, field.types().get(0));
+                    }
+                    if (validating) {
+                        genValidate(field, name, type, ptype, isPrim, isEnum, field.types().get(0));
+                    }
                     genClear(field.isList(), name, ptype);
                 }
             } else {
@@ -423,6 +992,441 @@ public class PECodeGenerator {
             }
         }
 
+        /**
+         * Writes the load and save code of the field as plain calls on the HAPI model class, with the element's accessors and
+         * extension URL resolved now rather than by the profile model at runtime. Only done for elements that are direct
+         * children of the resource, aren't sliced and have a core type, for the slices of such elements that are told apart
+         * by the value of their system, url or code, and for simple extensions on the resource
+         * @return false if the field isn't eligible, and has to go through the profile model
+         */
+        private boolean genDirect(PEDefinition field, boolean isPrim, String name, String type, String ptype, boolean isEnum, PEType typeInfo) {
+            ElementDefinition ed = field.definition();
+            String[] path = ed.getPath().split("\\.");
+            boolean coreType = typeInfo == null || typeInfo.getUrl() == null || typeInfo.getUrl().startsWith("http://hl7.org/fhir/StructureDefinition");
+            if (path.length != 2 || !coreType || ed.hasSlicing() || "BackboneElement".equals(type) || Utilities.existsInList(type, workerContext.getResourceNames())) {
+                return false;
+            }
+            if (field.isExtension()) {
+                if (!"extension".equals(path[1]) || !ed.hasSliceName() || isEnum || !ed.getTypeFirstRep().hasProfile() || !org.hl7.fhir.r4.model.DomainResource.class.isAssignableFrom(modelClass)) {
+                    return false;
+                }
+                genDirectExtension(ed.getTypeFirstRep().getProfile().get(0).getValue(), isPrim, name, type, ptype, field.isList());
+                return true;
+            }
+            if (Utilities.existsInList(path[1], "extension", "modifierExtension")) {
+                return false;
+            }
+            String property = Utilities.capitalize(path[1]);
+            if (modelMethod("get"+property) == null && modelMethod("get"+property+"_") != null) {
+                // HAPI appends an underscore to names that are java keywords
+                property = property+"_";
+            }
+            if (ed.hasSliceName()) {
+                return !isEnum && genDirectSlice(field, property, name, type);
+            }
+            if (field.isList()) {
+                Method getter = modelMethod("get"+property);
+                if (isEnum || getter == null || !(getter.getGenericReturnType() instanceof ParameterizedType lt) || !typeName(lt.getActualTypeArguments()[0]).equals(type)) {
+                    return false;
+                }
+                w(loadDirect, "    if (res.has"+property+"()) {");
+                w(loadDirect, "      "+name+".addAll(res.get"+property+"());");
+                w(loadDirect, "    }");
+                w(saveDirect, "    res.set"+property+"(new ArrayList<>("+name+"));");
+                return true;
+            }
+            if (isPrim || (isEnum && "code".equals(typeInfo.getName()))) {
+                Method getter = modelMethod("get"+property+"Element");
+                if (getter == null || !org.hl7.fhir.r4.model.PrimitiveType.class.isAssignableFrom(getter.getReturnType())) {
+                    return false;
+                }
+                boolean asCode = isEnum || "CodeType".equals(type);
+                if (!asCode && !getter.getReturnType().getSimpleName().equals(type)) {
+                    return false;
+                }
+                w(loadDirect, "    if (res.has"+property+"Element()) {");
+                if (isEnum) {
+                    w(loadDirect, "      "+name+" = "+type+".fromCode(res.get"+property+"Element().primitiveValue());");
+                    checkBound(loadDirect, "      ", name, fieldIndex);
+                } else if (asCode) {
+                    w(loadDirect, "      "+name+" = res.get"+property+"Element().primitiveValue();");
+                } else {
+                    w(loadDirect, "      "+name+" = res.get"+property+"Element().getValue();");
+                }
+                w(loadDirect, "    }");
+                w(saveDirect, "    res.set"+property+"Element(null);");
+                w(saveDirect, "    "+saveCondition(name, ptype, isEnum)+" {");
+                if (isEnum) {
+                    w(saveDirect, "      res.setProperty(\""+path[1]+"\", new CodeType("+name+".toCode()));");
+                } else if (asCode && !getter.getReturnType().getSimpleName().equals(type)) {
+                    w(saveDirect, "      res.setProperty(\""+path[1]+"\", new CodeType("+name+"));");
+                } else {
+                    w(saveDirect, "      res.set"+property+"Element(new "+type+"("+name+"));");
+                }
+                w(saveDirect, "    }");
+                return true;
+            }
+            Method getter = modelMethod("get"+property);
+            String valueType = isEnum ? typeInfo.getName() : type;
+            if (getter == null || !getter.getReturnType().getSimpleName().equals(valueType)) {
+                return false;
+            }
+            w(loadDirect, "    if (res.has"+property+"()) {");
+            if (isEnum) {
+                w(loadDirect, "      "+name+" = "+type+".from"+valueType+"(res.get"+property+"());");
+                checkBound(loadDirect, "      ", name, fieldIndex);
+            } else {
+                w(loadDirect, "      "+name+" = res.get"+property+"();");
+            }
+            w(loadDirect, "    }");
+            if (isEnum) {
+                w(saveDirect, "    res.set"+property+"("+name+" == null ? null : "+name+".to"+valueType+"());");
+            } else {
+                w(saveDirect, "    res.set"+property+"("+name+");");
+            }
+            return true;
+        }
+
+        /**
+         * Writes the load and save code of a slice as a filter over the items of the sliced element, the way the profile
+         * model matches them: on the fixed or pattern values of their discriminators. Only done if every discriminator is a
+         * value or pattern on the system, url or code of the item
+         * @return false if the slice can't be told apart that way, and has to go through the profile model
+         */
+        private boolean genDirectSlice(PEDefinition field, String property, String name, String type) {
+            ElementDefinition ed = field.definition();
+            Method getter = modelMethod("get"+property);
+            if (!ed.hasId() || ed.getId().lastIndexOf(':') < 0 || getter == null || !(getter.getGenericReturnType() instanceof ParameterizedType lt)
+                    || !(lt.getActualTypeArguments()[0] instanceof Class<?> itemClass) || !itemClass.getSimpleName().equals(type)) {
+                return false;
+            }
+            List<ElementDefinition> elements = field.getProfile().getSnapshot().getElement();
+            ElementDefinition sliced = element(elements, ed.getId().substring(0, ed.getId().lastIndexOf(':')));
+            if (sliced == null || !sliced.hasSlicing() || !sliced.getSlicing().hasDiscriminator()) {
+                return false;
+            }
+            List<String> conditions = new ArrayList<>();
+            for (ElementDefinition.ElementDefinitionSlicingDiscriminatorComponent discriminator : sliced.getSlicing().getDiscriminator()) {
+                String discriminatorPath = discriminator.getPath();
+                if ((discriminator.getType() != ElementDefinition.DiscriminatorType.VALUE && discriminator.getType() != ElementDefinition.DiscriminatorType.PATTERN)
+                        || !Utilities.existsInList(discriminatorPath, "system", "url", "code")) {
+                    return false;
+                }
+                String accessor = Utilities.capitalize(discriminatorPath);
+                Method element = modelMethod(itemClass, "get"+accessor+"Element");
+                String value = sliceValue(elements, ed, discriminatorPath);
+                if (value == null || element == null || modelMethod(itemClass, "has"+accessor) == null || !org.hl7.fhir.r4.model.PrimitiveType.class.isAssignableFrom(element.getReturnType())) {
+                    return false;
+                }
+                conditions.add("item.has"+accessor+"() && "+literal(value)+".equals(item.get"+accessor+"Element().primitiveValue())");
+            }
+            String matches = String.join(" && ", conditions);
+            w(loadDirect, "    for ("+type+" item : res.get"+property+"()) {");
+            w(loadDirect, "      if ("+matches+") {");
+            if (field.isList()) {
+                w(loadDirect, "        "+name+".add(item);");
+            } else {
+                w(loadDirect, "        "+name+" = item;");
+                w(loadDirect, "        break;");
+            }
+            w(loadDirect, "      }");
+            w(loadDirect, "    }");
+            w(saveDirect, "    res.get"+property+"().removeIf(item -> "+matches+");");
+            if (field.isList()) {
+                w(saveDirect, "    res.get"+property+"().addAll("+name+");");
+            } else {
+                w(saveDirect, "    if ("+name+" != null) {");
+                w(saveDirect, "      res.get"+property+"().add("+name+");");
+                w(saveDirect, "    }");
+            }
+            return true;
+        }
+
+        /**
+         * @return The primitive value the slice fixes its discriminator at, either on the child element of the slice or
+         * in the fixed or pattern value of the slice itself, or null if it doesn't fix one
+         */
+        private String sliceValue(List<ElementDefinition> elements, ElementDefinition slice, String discriminatorPath) {
+            ElementDefinition child = element(elements, slice.getId()+"."+discriminatorPath);
+            if (child != null && child.hasFixed() && child.getFixed().isPrimitive()) {
+                return child.getFixed().primitiveValue();
+            }
+            if (child != null && child.hasPattern() && child.getPattern().isPrimitive()) {
+                return child.getPattern().primitiveValue();
+            }
+            Type value = slice.hasFixed() ? slice.getFixed() : slice.hasPattern() ? slice.getPattern() : null;
+            if (value != null) {
+                org.hl7.fhir.r4.model.Base[] values = value.getProperty(discriminatorPath.hashCode(), discriminatorPath, false);
+                if (values != null && values.length == 1 && values[0].isPrimitive()) {
+                    return values[0].primitiveValue();
+                }
+            }
+            return null;
+        }
+
+        private ElementDefinition element(List<ElementDefinition> elements, String id) {
+            for (ElementDefinition element : elements) {
+                if (id.equals(element.getId())) {
+                    return element;
+                }
+            }
+            return null;
+        }
+
+        private void genDirectExtension(String url, boolean isPrim, String name, String type, String ptype, boolean isList) {
+            w(loadDirect, "    for (Extension ext : res.getExtensionsByUrl(\""+url+"\")) {");
+            if (isList) {
+                w(loadDirect, "      if (ext.getValue() instanceof "+type+") {");
+                w(loadDirect, "        "+name+".add(("+type+") ext.getValue());");
+                w(loadDirect, "      }");
+            } else {
+                w(loadDirect, "      if (ext.getValue() instanceof "+type+") {");
+                if (!isPrim) {
+                    w(loadDirect, "        "+name+" = ("+type+") ext.getValue();");
+                } else if ("CodeType".equals(type)) {
+                    w(loadDirect, "        "+name+" = ext.getValue().primitiveValue();");
+                } else {
+                    w(loadDirect, "        "+name+" = (("+type+") ext.getValue()).getValue();");
+                }
+                w(loadDirect, "      }");
+                w(loadDirect, "      break;");
+            }
+            w(loadDirect, "    }");
+            w(saveDirect, "    res.getExtension().removeIf(ext -> \""+url+"\".equals(ext.getUrl()));");
+            if (isList) {
+                w(saveDirect, "    for ("+type+" item : "+name+") {");
+                w(saveDirect, "      res.addExtension(new Extension(\""+url+"\", item));");
+            } else {
+                w(saveDirect, "    "+saveCondition(name, ptype, false)+" {");
+                w(saveDirect, "      res.addExtension(new Extension(\""+url+"\", "+(isPrim ? "new "+type+"("+name+")" : name)+"));");
+            }
+            w(saveDirect, "    }");
+        }
+
+        /**
+         * @return The condition under which save writes the field, the same as the profile model code uses
+         */
+        private String saveCondition(String name, String ptype, boolean isEnum) {
+            if (!isEnum && "boolean".equals(ptype)) {
+                return "if (true)";
+            } else if (!isEnum && "int".equals(ptype)) {
+                return "if ("+name+" != 0)";
+            } else {
+                return "if ("+name+" != null)";
+            }
+        }
+
+        /**
+         * Records how the field appears in FHIR JSON, for the generated codec. The codec handles direct children of the
+         * resource that aren't sliced and have a core type, and simple extensions. If the class has any other field, the
+         * codec goes through build() and the HAPI parser instead
+         */
+        private void jsonField(PEDefinition field, boolean isPrim, String name, String type, String ptype, boolean isEnum, PEType typeInfo) {
+            ElementDefinition ed = field.definition();
+            String[] path = ed.getPath().split("\\.");
+            boolean coreType = typeInfo == null || typeInfo.getUrl() == null || typeInfo.getUrl().startsWith("http://hl7.org/fhir/StructureDefinition");
+            JsonKind kind = isEnum ? ("code".equals(typeInfo.getName()) ? JsonKind.CODE : JsonKind.COMPLEX_ENUM) : isPrim ? primitiveKind(ptype) : JsonKind.COMPLEX;
+            if (path.length != 2 || !coreType || ed.hasSlicing() || path[1].contains("[x]") || "BackboneElement".equals(type) || Utilities.existsInList(type, workerContext.getResourceNames())
+                    || extensionPolicy == ExtensionPolicy.Primitives || kind == null || (field.isList() && (isEnum || isPrim))) {
+                jsonFallback = true;
+                return;
+            }
+            if (field.isExtension()) {
+                if (!"extension".equals(path[1]) || !ed.hasSliceName() || isEnum || !ed.getTypeFirstRep().hasProfile() || !org.hl7.fhir.r4.model.DomainResource.class.isAssignableFrom(jsonModel)) {
+                    jsonFallback = true;
+                    return;
+                }
+                jsonFields.add(new JsonField("extension", name, type, ptype, kind, field.isList(), typeInfo.getName(), ed.getTypeFirstRep().getProfile().get(0).getValue(), null, fieldIndex));
+                return;
+            }
+            if (ed.hasSliceName() || Utilities.existsInList(path[1], "extension", "modifierExtension")) {
+                jsonFallback = true;
+                return;
+            }
+            String accessor = Utilities.capitalize(path[1]);
+            if (modelMethod(jsonModel, "get"+accessor) == null && modelMethod(jsonModel, "get"+accessor+"_") != null) {
+                // HAPI appends an underscore to names that are java keywords
+                accessor = accessor+"_";
+            }
+            if (kind == JsonKind.COMPLEX || kind == JsonKind.COMPLEX_ENUM) {
+                // these are read back through the model class, so its getter has to return the type of the field
+                Method getter = modelMethod(jsonModel, "get"+accessor);
+                String valueType = isEnum ? typeInfo.getName() : type;
+                boolean matches = getter != null && (field.isList()
+                        ? getter.getGenericReturnType() instanceof ParameterizedType lt && typeName(lt.getActualTypeArguments()[0]).equals(type)
+                        : getter.getReturnType().getSimpleName().equals(valueType));
+                if (!matches) {
+                    jsonFallback = true;
+                    return;
+                }
+            }
+            jsonFields.add(new JsonField(path[1], name, type, ptype, kind, field.isList(), typeInfo == null ? null : typeInfo.getName(), null, accessor, fieldIndex));
+        }
+
+        private JsonKind primitiveKind(String ptype) {
+            return switch (ptype) {
+                case "boolean" -> JsonKind.BOOLEAN;
+                case "int" -> JsonKind.INT;
+                case "BigDecimal" -> JsonKind.DECIMAL;
+                case "String", "Date", "byte[]" -> JsonKind.STRING;
+                default -> null;
+            };
+        }
+
+        private Method modelMethod(String name) {
+            return modelMethod(modelClass, name);
+        }
+
+        private Method modelMethod(Class<?> model, String name) {
+            try {
+                return model.getMethod(name);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        private String typeName(java.lang.reflect.Type type) {
+            return type instanceof Class<?> c ? c.getSimpleName() : type.getTypeName();
+        }
+
+        /**
+         * Moves the load code of the current field, written since mark, into a method of its own, which loads the field from
+         * the kept source the first time it is accessed. The accessors call it, and setters mark the field as loaded
+         */
+        private void lazyLoad(int mark, String cname) {
+            w(lazyLoads, "  private void ensure"+cname+"() {");
+            w(lazyLoads, "    if (source == null || loaded.get("+fieldIndex+")) {");
+            w(lazyLoads, "      return;");
+            w(lazyLoads, "    }");
+            w(lazyLoads, "    loaded.set("+fieldIndex+");");
+            w(lazyLoads, "    PEInstance src = "+SUPPORT_CLASS+".instance(workerContext, CANONICAL_URL, source);");
+            lazyLoads.append(load, mark, load.length());
+            w(lazyLoads, "  }");
+            w(lazyLoads);
+            load.setLength(mark);
+            w(ensureAll, "    ensure"+cname+"();");
+        }
+
+        /**
+         * Wraps the save code of the current field, written since mark, so that it only runs if the field was modified or
+         * everything is saved
+         */
+        private void saveIfDirty(int mark) {
+            String code = save.substring(mark);
+            save.setLength(mark);
+            w(save, "    if (all || dirty.get("+fieldIndex+")) {");
+            for (String line : code.split("\r\n")) {
+                w(save, line.isEmpty() ? line : "  "+line);
+            }
+            w(save, "    }");
+        }
+
+        /**
+         * Mutators, and getters that return something the caller can modify, mark the field as dirty
+         */
+        private void markDirty() {
+            if (tracking) {
+                w(accessors, "    dirty.set("+fieldIndex+");");
+            }
+        }
+
+        /**
+         * Records a code that was loaded into an enum field but isn't in the enum, i.e. not in the required ValueSet, for
+         * validate() to report. Loading leaves such fields null
+         */
+        private void checkBound(StringBuilder b, String pfx, String name, int index) {
+            if (validating) {
+                w(b, pfx+"if ("+name+" == null) {");
+                w(b, pfx+"  unbound.set("+index+");");
+                w(b, pfx+"}");
+            }
+        }
+
+        /**
+         * Writes the checks of the field into validate(): its cardinality, its fixed value if it is a primitive, membership
+         * of the required ValueSet if it is an enum, and the checks of the generated classes of its values
+         */
+        private void genValidate(PEDefinition field, String name, String type, String ptype, boolean isPrim, boolean isEnum, PEType typeInfo) {
+            ElementDefinition ed = field.definition();
+            String path = literal(ed.hasId() ? ed.getId() : ed.getPath());
+            String issue = "validationIssues.add(new "+SUPPORT_CLASS+".Issue("+SUPPORT_CLASS+".Issue.Kind.";
+            String valueSet = ed.getBinding().getValueSet();
+            boolean generated = typeInfo != null && typeInfo.getUrl() != null && !typeInfo.getUrl().startsWith("http://hl7.org/fhir/StructureDefinition");
+            if (field.isList()) {
+                if (field.min() > 0) {
+                    w(validate, "    if ("+name+".size() < "+field.min()+") {");
+                    w(validate, "      "+issue+"CARDINALITY, "+path+", \"minimum required = "+field.min()+", but only found \"+"+name+".size()));");
+                    w(validate, "    }");
+                }
+                if (field.max() != Integer.MAX_VALUE) {
+                    w(validate, "    if ("+name+".size() > "+field.max()+") {");
+                    w(validate, "      "+issue+"CARDINALITY, "+path+", \"maximum allowed = "+field.max()+", but found \"+"+name+".size()));");
+                    w(validate, "    }");
+                }
+                if (isEnum) {
+                    w(validate, "    if ("+name+".contains(null)) {");
+                    w(validate, "      "+issue+"BINDING, "+path+", \"a code isn't in the required ValueSet "+Utilities.escapeJava(valueSet)+"\"));");
+                    w(validate, "    }");
+                } else if (generated) {
+                    w(validate, "    for ("+type+" item : "+name+") {");
+                    w(validate, "      validationIssues.addAll(item.validate());");
+                    w(validate, "    }");
+                }
+                return;
+            }
+            boolean value = isPrim && !isEnum && extensionPolicy != ExtensionPolicy.Primitives;
+            String present;
+            if (isEnum) {
+                present = name+" != null";
+            } else if (value) {
+                present = "boolean".equals(ptype) ? null : "int".equals(ptype) ? name+" != 0" : name+" != null";
+            } else if (generated) {
+                present = name+" != null";
+            } else {
+                present = name+" != null && !"+name+".isEmpty()";
+            }
+            if (field.min() > 0 && present != null) {
+                w(validate, "    if (!("+present+")) {");
+                w(validate, "      "+issue+"CARDINALITY, "+path+", \"minimum required = "+field.min()+", but only found 0\"));");
+                w(validate, "    }");
+            }
+            if (isEnum) {
+                w(validate, "    if (unbound.get("+fieldIndex+")) {");
+                w(validate, "      "+issue+"BINDING, "+path+", \"the code isn't in the required ValueSet "+Utilities.escapeJava(valueSet)+"\"));");
+                w(validate, "    }");
+            }
+            if (value && field.hasFixedValue() && field.getFixedValue().isPrimitive()) {
+                String fixed = field.getFixedValue().primitiveValue();
+                String differs = switch (ptype) {
+                    case "String" -> name+" != null && !"+literal(fixed)+".equals("+name+")";
+                    case "boolean", "int" -> name+" != "+fixed;
+                    default -> null;
+                };
+                if (differs != null) {
+                    w(validate, "    if ("+differs+") {");
+                    w(validate, "      "+issue+"FIXED_VALUE, "+path+", \"the value must be "+Utilities.escapeJava(fixed)+", but is \"+"+name+"));");
+                    w(validate, "    }");
+                }
+            }
+            if (generated) {
+                w(validate, "    if ("+name+" != null) {");
+                w(validate, "      validationIssues.addAll("+name+".validate());");
+                w(validate, "    }");
+            }
+        }
+
+        private void ensureLoaded(String cname) {
+            if (lazy) {
+                w(accessors, "    ensure"+cname+"();");
+            }
+        }
+
+        private void markLoaded() {
+            if (lazy) {
+                w(accessors, "    loaded.set("+fieldIndex+");");
+            }
+        }
+
         private void genClear(boolean list, String name, String ptype) {
             if (list) {
                 w(clear, "    "+name+".clear();");
@@ -464,6 +1468,7 @@ public class PECodeGenerator {
                 } else {
                     w(load, "      "+name+" = "+type+".fromCode(src.child(\""+fname+"\").asDataType().primitiveValue());");
                 }
+                checkBound(load, "      ", name, fieldIndex);
                 w(load, "    }");
             } else if (isPrim) {
                 w(load, "    if (src.hasChild(\""+fname+"\")) {");
@@ -567,6 +1572,7 @@ public class PECodeGenerator {
             }
             if ((isEnum || isPrim) && extensionPolicy != ExtensionPolicy.Primitives && !isList) {
                 w(accessors, "  public "+ptype+" get"+cname+"() {");
+                ensureLoaded(cname);
                 w(accessors, "    return "+name+";");
                 w(accessors, "  }");
                 w(accessors);
@@ -576,11 +1582,17 @@ public class PECodeGenerator {
                     w(accessors, "  }");
                 } else {
                     w(accessors, "  public "+this.name+" set"+cname+"("+ptype+" value) {");
+                    markLoaded();
+                    markDirty();
+                    if (validating && isEnum) {
+                        w(accessors, "    unbound.clear("+fieldIndex+");");
+                    }
                     w(accessors, "    this."+name+" = value;");
                     w(accessors, "    return this;");
                     w(accessors, "  }");
                     w(accessors);
                     w(accessors, "  public boolean has"+cname+"() {");
+                    ensureLoaded(cname);
                     if ("boolean".equals(ptype)) {
                         w(accessors, "    return true; // not "+name+" != false ?");
                     } else if ("int".equals(ptype)) {
@@ -593,6 +1605,7 @@ public class PECodeGenerator {
             } else {
                 if (isPrim && !isList) {
                     w(accessors, "  public "+ptype+" get"+cname+"() {");
+                    ensureLoaded(cname);
                     w(accessors, "    if ("+name+" == null) { "+name+" = new "+type+"(); }");
                     w(accessors, "    return "+name+".getValue();");
                     w(accessors, "  }");
@@ -602,6 +1615,8 @@ public class PECodeGenerator {
                 } else {
                     w(accessors, "  public "+ltype+" get"+cname+"() {");
                 }
+                ensureLoaded(cname);
+                markDirty();
                 if (isList) {
                     w(accessors, "    if ("+name+" == null) { "+name+" = "+init+"; }");
                 } else if (!isAbstract) {
@@ -612,6 +1627,7 @@ public class PECodeGenerator {
                 w(accessors);
                 if (isList) {
                     w(accessors, "  public boolean has"+cname+"() {");
+                    ensureLoaded(cname);
                     w(accessors, "    return "+name+" != null && !"+name+".isEmpty();");
                     w(accessors, "  }");
                     w(accessors);
@@ -634,6 +1650,7 @@ public class PECodeGenerator {
                     w(accessors, "  }");
                     w(accessors);
                     w(accessors, "  public void remove"+csname+"("+type+" item) {");
+                    markDirty();
                     w(accessors, "    if (has"+csname+"(item)) {");
                     w(accessors, "      "+name+".remove(item);");
                     w(accessors, "    }");
@@ -642,27 +1659,35 @@ public class PECodeGenerator {
                 } else if (isPrim) {
                     if (!isFixed) {
                         w(accessors, "  public "+this.name+" set"+cname+"("+ptype+" value) {");
+                        markLoaded();
+                        markDirty();
                         w(accessors, "    if ("+name+" == null) { "+name+" = new "+type+"(); }");
                         w(accessors, "    "+name+".setValue(value);");
                         w(accessors, "    return this;");
                         w(accessors, "  }");
                         w(accessors, "  public "+this.name+" set"+cname+"Element("+type+" value) {");
+                        markLoaded();
+                        markDirty();
                         w(accessors, "    this."+name+" = value;");
                         w(accessors, "    return this;");
                         w(accessors, "  }");
                     }
                     w(accessors, "  public boolean has"+cname+"() {");
+                    ensureLoaded(cname);
                     w(accessors, "    return "+name+" != null && "+name+".hasValue();");
                     w(accessors, "  }");
                     w(accessors);
                 } else {
                     if (!isFixed) {
                         w(accessors, "  public "+this.name+" set"+cname+"("+type+" value) {");
+                        markLoaded();
+                        markDirty();
                         w(accessors, "    this."+name+" = value;");
                         w(accessors, "    return this;");
                         w(accessors, "  }");
                     }
                     w(accessors, "  public boolean has"+cname+"() {");
+                    ensureLoaded(cname);
                     w(accessors, "    return "+name+" != null;");
                     w(accessors, "  }");
                 }
@@ -671,6 +1696,7 @@ public class PECodeGenerator {
         }
 
         private void genField(boolean isPrim, String name, String ptype, String ltype, String nn, boolean isList, String shortDoco, int min, int max, ElementDefinition ed) {
+            fieldIndex++;
 //      jdoc(fields, shortDoco, 2, true);
             w(fields, "  @Min(\""+min+"\") @Max(\""+(max == Integer.MAX_VALUE ? "*" : max) +"\")"+(" @Doco(\""+Utilities.escapeJava(shortDoco)+"\")"));
             if (ed != null) {
@@ -712,8 +1738,137 @@ public class PECodeGenerator {
         }
     }
 
+    /**
+     * Expands the ValueSets of required bindings into enums. Implementations may share expansions between generators, in
+     * which case they must not be modified
+     */
+    public interface ExpansionProvider {
+        ValueSetExpansionOutcome expand(IWorkerContext context, org.hl7.fhir.r4.model.ValueSet vs);
+    }
+
+    /**
+     * Measures the phases of generating a class: building the definition, expanding ValueSets, emitting and writing the
+     * code. Phases may nest, and are closed on the thread that began them
+     */
+    public interface Profiler {
+        Profiler NONE = phase -> () -> {};
+
+        Phase begin(String phase);
+
+        interface Phase extends AutoCloseable {
+            @Override
+            void close();
+        }
+    }
+
+    /**
+     * Assigns every ValueSet bound to an enum one top-level enum in the valuesets subpackage, shared by all classes generated
+     * into the same folder. Names assigned by earlier runs are recovered from the enums found there, so they stay stable
+     * across incremental runs. The remaining ValueSets are named by {@link #reserve} before the generators run, so two
+     * ValueSets with the same name get the same suffixes whichever generator thread reaches them first
+     */
+    public static class SharedEnums {
+        public static final String PACKAGE = "valuesets";
+        static final String MARKER = "// ValueSet: ";
+
+        private final Path directory;
+        private final Map<String, String> names = new HashMap<>();
+        private final Set<String> taken = new HashSet<>();
+        private final Set<String> written = new HashSet<>();
+
+        /**
+         * @param folder The folder the classes are generated into
+         */
+        public SharedEnums(String folder) throws IOException {
+            this.directory = Path.of(folder, PACKAGE);
+            Files.createDirectories(directory);
+            try (var files = Files.list(directory)) {
+                for (Path file : files.filter(f -> f.getFileName().toString().endsWith(".java")).toList()) {
+                    String name = file.getFileName().toString().replace(".java", "");
+                    try (var lines = Files.lines(file, StandardCharsets.UTF_8)) {
+                        lines.filter(l -> l.startsWith(MARKER)).findFirst().ifPresent(l -> {
+                            names.put(l.substring(MARKER.length()), name);
+                            taken.add(name);
+                        });
+                    }
+                }
+            }
+        }
+
+        public Path getDirectory() {
+            return directory;
+        }
+
+        /**
+         * Names the enums of all ValueSets the profiles bind with required strength, in the order of their url|version.
+         * This may name ValueSets that end up without an enum (e.g. too large to expand), which only costs them a name
+         *
+         * @param context The context the profiles are generated from
+         * @param profiles The canonical URLs of all profiles generated into the folder, not only those regenerated
+         */
+        public void reserve(IWorkerContext context, Collection<String> profiles) {
+            Map<String, String> bound = new TreeMap<>();
+            for (String url : profiles) {
+                StructureDefinition sd = context.fetchResource(StructureDefinition.class, url);
+                if (sd == null || !sd.hasSnapshot()) {
+                    continue;
+                }
+                for (ElementDefinition ed : sd.getSnapshot().getElement()) {
+                    // the getters would add an empty binding to the shared definition
+                    if (ed.hasBinding() && ed.getBinding().getStrength() == org.hl7.fhir.r4.model.Enumerations.BindingStrength.REQUIRED && ed.getBinding().hasValueSet()) {
+                        org.hl7.fhir.r4.model.ValueSet vs = context.fetchResource(org.hl7.fhir.r4.model.ValueSet.class, ed.getBinding().getValueSet());
+                        if (vs != null) {
+                            bound.putIfAbsent(vs.getUrl()+"|"+vs.getVersion(), baseName(vs));
+                        }
+                    }
+                }
+            }
+            bound.forEach((key, baseName) -> nameFor(key, baseName, enumName(context, baseName)));
+        }
+
+        static String baseName(org.hl7.fhir.r4.model.ValueSet vs) {
+            return Utilities.nmtokenize(Utilities.singularise(vs.getName()));
+        }
+
+        static String enumName(IWorkerContext context, String baseName) {
+            return context.getResourceNames().contains(baseName) ? baseName+"Type" : baseName;
+        }
+
+        synchronized String nameFor(String key, String baseName, String name) {
+            String existing = names.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            int c = 0;
+            while (taken.contains(name)) {
+                c++;
+                name = baseName+c;
+            }
+            names.put(key, name);
+            taken.add(name);
+            return name;
+        }
+
+        /**
+         * @return true if the caller is the first in this run to use the ValueSet, and has to write its enum
+         */
+        synchronized boolean claim(String key) {
+            return written.add(key);
+        }
+    }
+
+    private static final ExpansionProvider DIRECT_EXPANSION = (context, vs) -> {
+        // the worker context is shared between generators running in parallel
+        synchronized (context) {
+            return context.expandVS(vs, false, false);
+        }
+    };
+
     private String folder;
     private IWorkerContext workerContext;
+    private ExpansionProvider expansionProvider = DIRECT_EXPANSION;
+    private SharedEnums sharedEnums;
+    private Profiler profiler = Profiler.NONE;
     private String canonical;
     private String pkgName;
     private String version = "r4";
@@ -725,6 +1880,13 @@ public class PECodeGenerator {
     private boolean meta;
     private String language;
     private boolean keyElementsOnly;
+    private boolean direct;
+    private boolean lazyLoad;
+    private boolean dirtyTracking;
+    private boolean jsonCodec;
+    private boolean validation;
+    private int maxEnumCodes = DEFAULT_MAX_ENUM_CODES;
+    private boolean supportClass = true;
     private String genDate = DEFAULT_DATE();
 
 
@@ -808,6 +1970,97 @@ public class PECodeGenerator {
         this.keyElementsOnly = keyElementsOnly;
     }
 
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @param direct Whether generated resource classes should load and save the elements they can through plain HAPI model
+     *               calls resolved at generation time, instead of through the profile model at runtime
+     */
+    public void setDirect(boolean direct) {
+        this.direct = direct;
+    }
+
+    public boolean isLazyLoad() {
+        return lazyLoad;
+    }
+
+    /**
+     * @param lazyLoad Whether generated classes should keep their source when loaded, and only load each element from it
+     *                 when it is first accessed. Changes to the source before then show in the loaded element. Resource
+     *                 classes generated in direct mode are still loaded eagerly
+     */
+    public void setLazyLoad(boolean lazyLoad) {
+        this.lazyLoad = lazyLoad;
+    }
+
+    public boolean isDirtyTracking() {
+        return dirtyTracking;
+    }
+
+    /**
+     * @param dirtyTracking Whether generated classes should record which fields were modified since they were loaded, so
+     *                      that saving into the loaded source, or building from it, only writes those. Getters returning
+     *                      lists or elements count as modifications, as the caller may change what they return. Resource
+     *                      classes generated in direct mode always write all their fields
+     */
+    public void setDirtyTracking(boolean dirtyTracking) {
+        this.dirtyTracking = dirtyTracking;
+    }
+
+    public boolean isJsonCodec() {
+        return jsonCodec;
+    }
+
+    /**
+     * @param jsonCodec Whether generated resource classes should have writeJson and fromJson methods, which write and read
+     *                  the FHIR JSON of their elements with Jackson instead of building a resource for the HAPI parser. The
+     *                  output is the same as the HAPI parser writes for the result of build(). Classes with elements the
+     *                  codec can't stream (slices, and the elements direct mode can't load directly) still go through the HAPI parser
+     */
+    public void setJsonCodec(boolean jsonCodec) {
+        this.jsonCodec = jsonCodec;
+    }
+
+    public boolean isValidation() {
+        return validation;
+    }
+
+    /**
+     * @param validation Whether generated classes should have a validate() method, which checks the cardinalities, fixed
+     *                   primitive values and required bindings (of the ValueSets generated as enums) in plain code, and
+     *                   returns what it finds as issues
+     */
+    public void setValidation(boolean validation) {
+        this.validation = validation;
+    }
+
+    public int getMaxEnumCodes() {
+        return maxEnumCodes;
+    }
+
+    /**
+     * @param maxEnumCodes The most codes a required binding's expansion can have to be generated as an enum. Larger ones
+     *                     are generated as plain codes, which is logged per binding. Above {@link #DEFAULT_MAX_ENUM_CODES}
+     *                     the generated enums may be too large to compile
+     */
+    public void setMaxEnumCodes(int maxEnumCodes) {
+        this.maxEnumCodes = maxEnumCodes;
+    }
+
+    public boolean isSupportClass() {
+        return supportClass;
+    }
+
+    /**
+     * @param supportClass Whether execute() writes the support class along with the generated class. Turn it off when
+     *                     generating many classes into one folder, and call {@link #writeSupportClass()} once instead
+     */
+    public void setSupportClass(boolean supportClass) {
+        this.supportClass = supportClass;
+    }
+
     public boolean isContained() {
         return contained;
     }
@@ -816,6 +2069,33 @@ public class PECodeGenerator {
         this.contained = contained;
     }
 
+    public ExpansionProvider getExpansionProvider() {
+        return expansionProvider;
+    }
+
+    public void setExpansionProvider(ExpansionProvider expansionProvider) {
+        this.expansionProvider = expansionProvider == null ? DIRECT_EXPANSION : expansionProvider;
+    }
+
+    public SharedEnums getSharedEnums() {
+        return sharedEnums;
+    }
+
+    /**
+     * @param sharedEnums Where to generate the enums as shared top-level types, or null to nest them in each class
+     */
+    public void setSharedEnums(SharedEnums sharedEnums) {
+        this.sharedEnums = sharedEnums;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler == null ? Profiler.NONE : profiler;
+    }
+
     public String getGenDate() {
         return genDate;
     }
@@ -833,7 +2113,10 @@ public class PECodeGenerator {
     public String execute() throws IOException {
         imports = new StringBuilder();
 
-        PEDefinition source = new PEBuilder(workerContext, PEElementPropertiesPolicy.EXTENSION, true).buildPEDefinition(canonical);
+        PEDefinition source;
+        try (var phase = profiler.begin("buildDefinition")) {
+            source = new PEBuilder(workerContext, PEElementPropertiesPolicy.EXTENSION, true).buildPEDefinition(canonical);
+        }
         w(imports, "import java.util.List;");
         w(imports, "import java.util.ArrayList;");
         w(imports, "import java.util.Date;\r\n");
@@ -854,19 +2137,411 @@ public class PECodeGenerator {
         w(imports, "import org.hl7.fhir."+version+".profilemodel.gen.ValueSet;");
         w(imports, "import org.hl7.fhir."+version+".profilemodel.gen.MustSupport;");
         w(imports, "import org.hl7.fhir."+version+".profilemodel.gen.Definition;");
+        if (jsonCodec) {
+            w(imports);
+            w(imports, "import java.io.StringWriter;");
+            w(imports, "import com.fasterxml.jackson.core.JsonGenerator;");
+            w(imports, "import com.fasterxml.jackson.core.JsonParser;");
+            w(imports, "import com.fasterxml.jackson.core.JsonToken;");
+        }
+
+
+        if (supportClass) {
+            writeSupportClass();
+        }
+        PEGenClass cls;
+        try (var phase = profiler.begin("emit")) {
+            cls = genClass(source);
+        }
+        imports.insert(0, classImports(cls));
+        try (var phase = profiler.begin("write")) {
+            writeIfChanged(Path.of(Utilities.path(folder, cls.name+".java")), out -> {
+                StringBuilder b = new StringBuilder();
+                w(b, "package "+pkgName+";");
+                w(b);
+                if (source.getProfile().hasCopyright()) {
+                    jdoc(b, source.getProfile().getCopyright(), 0, false);
+                }
+                section(b, out, imports);
+                cls.write(b, out, source.getProfile().getCopyright());
+            });
+        } finally {
+            cls.discard();
+        }
+        return cls.name+".java";
+    }
 
+    /**
+     * @return The imports only some classes need: those of the bulk conversions and JSON codec of resource classes, and
+     * those of nested enums
+     */
+    private String classImports(PEGenClass cls) {
+        Set<String> classes = new TreeSet<>();
+        if (cls.isResource) {
+            classes.addAll(List.of("java.io.IOException", "java.nio.file.Path", "java.util.concurrent.ExecutorService", "java.util.stream.Stream"));
+        }
+        if (cls.hasEnums()) {
+            classes.addAll(List.of("java.util.HashMap", "java.util.Map"));
+        }
+        StringBuilder b = new StringBuilder();
+        for (String c : classes) {
+            w(b, "import "+c+";");
+        }
+        return b.toString();
+    }
 
-        PEGenClass cls = genClass(source);
+    /**
+     * Writes the runtime support class the generated classes use to resolve their profile definition once per worker
+     * context, instead of on every conversion. The definitions aren't immutable: a PEDefinition computes its children on
+     * first access, and its PEBuilder keeps a FHIRPath engine and snapshot caches, none of them synchronized. So a
+     * definition is only ever used by the thread that built it. The cache is a static map though, not a ThreadLocal, so
+     * that no thread holds on to the generated classes: the contexts and threads are weakly referenced, and the definitions
+     * (which refer to their context) softly, so that nothing keeps a context, a finished thread or the classes alive.
+     * All the classes generated into a folder share it, so callers that generate many classes into one folder should turn
+     * off {@link #setSupportClass(boolean)} and call this once
+     */
+    public void writeSupportClass() throws IOException {
         StringBuilder b = new StringBuilder();
         w(b, "package "+pkgName+";");
         w(b);
-        if (source.getProfile().hasCopyright()) {
-            jdoc(b, source.getProfile().getCopyright(), 0, false);
+        w(b, "// Generated by the HAPI Java Profile Generator");
+        w(b);
+        w(b, "import java.io.BufferedReader;");
+        w(b, "import java.io.IOException;");
+        w(b, "import java.io.UncheckedIOException;");
+        w(b, "import java.lang.ref.SoftReference;");
+        w(b, "import java.nio.charset.StandardCharsets;");
+        w(b, "import java.nio.file.Files;");
+        w(b, "import java.nio.file.Path;");
+        w(b, "import java.util.ArrayDeque;");
+        w(b, "import java.util.Deque;");
+        w(b, "import java.util.HashMap;");
+        w(b, "import java.util.Iterator;");
+        if (jsonCodec) {
+            w(b, "import java.util.List;");
+        }
+        w(b, "import java.util.Map;");
+        w(b, "import java.util.NoSuchElementException;");
+        w(b, "import java.util.Spliterator;");
+        w(b, "import java.util.Spliterators;");
+        w(b, "import java.util.WeakHashMap;");
+        w(b, "import java.util.concurrent.ExecutionException;");
+        w(b, "import java.util.concurrent.ExecutorService;");
+        w(b, "import java.util.concurrent.Future;");
+        w(b, "import java.util.function.Function;");
+        w(b, "import java.util.stream.Stream;");
+        w(b, "import java.util.stream.StreamSupport;");
+        w(b);
+        if (jsonCodec) {
+            w(b, "import com.fasterxml.jackson.core.JsonFactory;");
+        }
+        w(b, "import ca.uhn.fhir.context.FhirContext;");
+        if (jsonCodec) {
+            w(b, "import org.hl7.fhir.instance.model.api.IBase;");
+        }
+        w(b, "import org.hl7.fhir.instance.model.api.IBaseResource;");
+        w(b, "import org.hl7.fhir."+version+".context.IWorkerContext;");
+        w(b, "import org.hl7.fhir."+version+".model.Base;");
+        w(b, "import org.hl7.fhir."+version+".model.Resource;");
+        w(b, "import org.hl7.fhir."+version+".profilemodel.PEBuilder;");
+        w(b, "import org.hl7.fhir."+version+".profilemodel.PEBuilder.PEElementPropertiesPolicy;");
+        w(b, "import org.hl7.fhir."+version+".profilemodel.PEDefinition;");
+        w(b, "import org.hl7.fhir."+version+".profilemodel.PEInstance;");
+        w(b);
+        jdoc(b, "Resolves the profile definitions of the generated classes once per worker context and thread, and reuses them for every later conversion. Also holds the plumbing of the bulk conversions.", 0, true);
+        w(b, "public final class "+SUPPORT_CLASS+" {");
+        w(b);
+        jdoc(b, "PEDefinitions build their children on first access and PEBuilders aren't thread safe, so each thread gets its own definitions. Guarded by itself", 2, true);
+        w(b, "  private static final Map<IWorkerContext, Map<Thread, SoftReference<Map<String, Profile>>>> PROFILES = new WeakHashMap<>();");
+        w(b);
+        w(b, "  private static final class Profile {");
+        w(b, "    private final PEBuilder builder;");
+        w(b, "    private final PEDefinition definition;");
+        w(b);
+        w(b, "    private Profile(PEBuilder builder, PEDefinition definition) {");
+        w(b, "      this.builder = builder;");
+        w(b, "      this.definition = definition;");
+        w(b, "    }");
+        w(b, "  }");
+        w(b);
+        w(b, "  private static final class CachedInstance extends PEInstance {");
+        w(b, "    private CachedInstance(PEBuilder builder, PEDefinition definition, Base data) {");
+        w(b, "      super(builder, definition, data instanceof Resource ? (Resource) data : null, data, definition.path());");
+        w(b, "    }");
+        w(b, "  }");
+        w(b);
+        w(b, "  private "+SUPPORT_CLASS+"() {");
+        w(b, "  }");
+        w(b);
+        w(b, "  private static Profile profile(IWorkerContext context, String url) {");
+        w(b, "    Thread thread = Thread.currentThread();");
+        w(b, "    Map<String, Profile> profiles;");
+        w(b, "    synchronized (PROFILES) {");
+        w(b, "      Map<Thread, SoftReference<Map<String, Profile>>> threads = PROFILES.computeIfAbsent(context, c -> new WeakHashMap<>());");
+        w(b, "      SoftReference<Map<String, Profile>> ref = threads.get(thread);");
+        w(b, "      profiles = ref == null ? null : ref.get();");
+        w(b, "      if (profiles == null) {");
+        w(b, "        profiles = new HashMap<>();");
+        w(b, "        threads.put(thread, new SoftReference<>(profiles));");
+        w(b, "      }");
+        w(b, "    }");
+        w(b, "    // only this thread uses its profiles");
+        w(b, "    Profile profile = profiles.get(url);");
+        w(b, "    if (profile == null) {");
+        w(b, "      PEBuilder builder = new PEBuilder(context, PEElementPropertiesPolicy.EXTENSION, true);");
+        w(b, "      profile = new Profile(builder, builder.buildPEDefinition(url));");
+        w(b, "      profiles.put(url, profile);");
+        w(b, "    }");
+        w(b, "    return profile;");
+        w(b, "  }");
+        w(b);
+        jdoc(b, "@return A view of the resource or element through the profile with the given URL, for use on the calling thread only", 2, true);
+        w(b, "  public static PEInstance instance(IWorkerContext context, String url, Base data) {");
+        w(b, "    Profile profile = profile(context, url);");
+        w(b, "    return new CachedInstance(profile.builder, profile.definition, data);");
+        w(b, "  }");
+        w(b);
+        jdoc(b, "@return A new resource conforming to the profile with the given URL", 2, true);
+        w(b, "  public static Resource createResource(IWorkerContext context, String url) {");
+        w(b, "    return profile(context, url).builder.createResource(url, false);");
+        w(b, "  }");
+        w(b);
+        jdoc(b, "@return The non-blank lines of an NDJSON file, read as the stream is consumed. Closing the stream closes the file", 2, true);
+        w(b, "  public static Stream<String> lines(Path file) throws IOException {");
+        w(b, "    BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);");
+        w(b, "    return reader.lines().filter(line -> !line.isBlank()).onClose(() -> {");
+        w(b, "      try {");
+        w(b, "        reader.close();");
+        w(b, "      } catch (IOException e) {");
+        w(b, "        throw new UncheckedIOException(e);");
+        w(b, "      }");
+        w(b, "    });");
+        w(b, "  }");
+        w(b);
+        w(b, "  public static <T extends IBaseResource> T parse(String json, Class<T> type) {");
+        w(b, "    return FhirContext.for"+version.toUpperCase()+"Cached().newJsonParser().parseResource(type, json);");
+        w(b, "  }");
+        w(b);
+        if (jsonCodec) {
+            w(b, "  public static final JsonFactory JSON = new JsonFactory();");
+            w(b);
+            jdoc(b, "@return The element as FHIR JSON, as the HAPI parser writes it inside a resource", 2, true);
+            w(b, "  public static String encode(IBase element) {");
+            w(b, "    return FhirContext.for"+version.toUpperCase()+"Cached().newJsonParser().encodeToString(element);");
+            w(b, "  }");
+            w(b);
+            jdoc(b, "@return Whether the parser writes anything for the list", 2, true);
+            w(b, "  public static boolean hasContent(List<? extends IBase> items) {");
+            w(b, "    for (IBase item : items) {");
+            w(b, "      if (!item.isEmpty()) {");
+            w(b, "        return true;");
+            w(b, "      }");
+            w(b, "    }");
+            w(b, "    return false;");
+            w(b, "  }");
+            w(b);
+        }
+        if (validation) {
+            jdoc(b, "A problem validate() found in an instance of a generated class", 2, true);
+            w(b, "  public static final class Issue {");
+            w(b, "    public enum Kind {");
+            w(b, "      CARDINALITY, FIXED_VALUE, BINDING");
+            w(b, "    }");
+            w(b);
+            w(b, "    private final Kind kind;");
+            w(b, "    private final String path;");
+            w(b, "    private final String message;");
+            w(b);
+            w(b, "    public Issue(Kind kind, String path, String message) {");
+            w(b, "      this.kind = kind;");
+            w(b, "      this.path = path;");
+            w(b, "      this.message = message;");
+            w(b, "    }");
+            w(b);
+            w(b, "    public Kind getKind() {");
+            w(b, "      return kind;");
+            w(b, "    }");
+            w(b);
+            jdoc(b, "@return The id of the element definition in the profile, e.g. Patient.extension:race", 4, true);
+            w(b, "    public String getPath() {");
+            w(b, "      return path;");
+            w(b, "    }");
+            w(b);
+            w(b, "    public String getMessage() {");
+            w(b, "      return message;");
+            w(b, "    }");
+            w(b);
+            w(b, "    @Override");
+            w(b, "    public String toString() {");
+            w(b, "      return path+\": \"+message;");
+            w(b, "    }");
+            w(b, "  }");
+            w(b);
+        }
+        jdoc(b, "Applies the function to the items on the executor, with at most window items in flight, and returns the results in the order of the items. Items are only taken from the source as results are consumed, so memory stays bounded", 2, true);
+        w(b, "  public static <T, R> Stream<R> map(Stream<T> source, Function<T, R> function, ExecutorService executor, int window) {");
+        w(b, "    if (window < 1) {");
+        w(b, "      throw new IllegalArgumentException(\"window must be at least 1: \"+window);");
+        w(b, "    }");
+        w(b, "    Iterator<T> input = source.iterator();");
+        w(b, "    Deque<Future<R>> pending = new ArrayDeque<>();");
+        w(b, "    Iterator<R> output = new Iterator<R>() {");
+        w(b, "      @Override");
+        w(b, "      public boolean hasNext() {");
+        w(b, "        fill();");
+        w(b, "        return !pending.isEmpty();");
+        w(b, "      }");
+        w(b);
+        w(b, "      @Override");
+        w(b, "      public R next() {");
+        w(b, "        fill();");
+        w(b, "        if (pending.isEmpty()) {");
+        w(b, "          throw new NoSuchElementException();");
+        w(b, "        }");
+        w(b, "        try {");
+        w(b, "          return pending.removeFirst().get();");
+        w(b, "        } catch (InterruptedException e) {");
+        w(b, "          Thread.currentThread().interrupt();");
+        w(b, "          throw new IllegalStateException(e);");
+        w(b, "        } catch (ExecutionException e) {");
+        w(b, "          if (e.getCause() instanceof RuntimeException) {");
+        w(b, "            throw (RuntimeException) e.getCause();");
+        w(b, "          }");
+        w(b, "          throw new IllegalStateException(e.getCause());");
+        w(b, "        }");
+        w(b, "      }");
+        w(b);
+        w(b, "      private void fill() {");
+        w(b, "        while (pending.size() < window && input.hasNext()) {");
+        w(b, "          T item = input.next();");
+        w(b, "          pending.addLast(executor.submit(() -> function.apply(item)));");
+        w(b, "        }");
+        w(b, "      }");
+        w(b, "    };");
+        w(b, "    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(output, Spliterator.ORDERED), false).onClose(() -> {");
+        w(b, "      pending.forEach(f -> f.cancel(true));");
+        w(b, "      source.close();");
+        w(b, "    });");
+        w(b, "  }");
+        w(b, "}");
+        try (var phase = profiler.begin("write")) {
+            writeIfChanged(Path.of(Utilities.path(folder, SUPPORT_CLASS+".java")), b.toString());
+        }
+    }
+
+    /**
+     * Only touches the file if the content changed, so that incremental compilation has nothing to do
+     */
+    private static void writeIfChanged(Path target, String source) throws IOException {
+        byte[] content = source.getBytes(StandardCharsets.UTF_8);
+        if (!Files.exists(target) || !Arrays.equals(Files.readAllBytes(target), content)) {
+            Files.write(target, content);
+        }
+    }
+
+    /**
+     * Streams the content to a temporary file next to the target, and only replaces the target if the content differs. The
+     * content is never held as a whole, so that generating many large classes in parallel doesn't need much memory
+     */
+    private static void writeIfChanged(Path target, Emitter emitter) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), "."+target.getFileName(), ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                emitter.emit(out);
+            }
+            if (!Files.exists(target) || Files.mismatch(temp, target) != -1) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * The start of a section of a generated class, moved to a temporary file once the section outgrew {@link #THRESHOLD}
+     * characters. A class with large enums or many fields thus holds no more than that in memory per section until it is
+     * written, however many of them are generated in parallel
+     */
+    private static class Spill {
+        private static final int THRESHOLD = 64 * 1024;
+
+        private Path file;
+        private Writer out;
+
+        /**
+         * Moves the section to the file, if it is large enough
+         */
+        void take(StringBuilder section) throws IOException {
+            if (section.length() < THRESHOLD) {
+                return;
+            }
+            if (out == null) {
+                file = Files.createTempFile("pegen", ".part");
+                out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            }
+            copy(section, out);
+            section.setLength(0);
+        }
+
+        boolean isEmpty() {
+            return file == null;
+        }
+
+        void copyTo(Writer target) throws IOException {
+            if (file != null) {
+                out.close();
+                try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    in.transferTo(target);
+                }
+            }
+        }
+
+        void delete() throws IOException {
+            if (file != null) {
+                out.close();
+                Files.deleteIfExists(file);
+                file = null;
+                out = null;
+            }
+        }
+    }
+
+    private interface Emitter {
+        void emit(Writer out) throws IOException;
+    }
+
+    /**
+     * Writes what has been collected in b, followed by the section as a line of its own
+     */
+    private void section(StringBuilder b, Writer out, StringBuilder section) throws IOException {
+        flush(b, out);
+        copy(section, out);
+        out.write("\r\n");
+    }
+
+    /**
+     * Writes what has been collected in b, followed by the part of the section spilled to a temporary file and the rest of
+     * the section, as a line of its own
+     */
+    private void section(StringBuilder b, Writer out, Spill spill, StringBuilder section) throws IOException {
+        flush(b, out);
+        spill.copyTo(out);
+        copy(section, out);
+        out.write("\r\n");
+    }
+
+    private void flush(StringBuilder b, Writer out) throws IOException {
+        copy(b, out);
+        b.setLength(0);
+    }
+
+    private static void copy(StringBuilder b, Writer out) throws IOException {
+        char[] chunk = new char[Math.min(b.length(), 8192)];
+        for (int i = 0; i < b.length(); i += chunk.length) {
+            int n = Math.min(chunk.length, b.length() - i);
+            b.getChars(i, i + n, chunk, 0);
+            out.write(chunk, 0, n);
         }
-        w(b, imports.toString());
-        cls.write(b, source.getProfile().getCopyright());
-        FileUtilities.stringToFile(b.toString(), Utilities.path(folder, cls.name+".java"));
-        return cls.name+".java";
     }
 
     public void jdoc(StringBuilder b, String doco, int indent, boolean jdoc) {
@@ -911,18 +2586,152 @@ public class PECodeGenerator {
         w(b);
     }
 
-    private PEGenClass genClass(PEDefinition source) {
+    /**
+     * Writes an enum for the codes in the expansion, with every line prefixed by pfx. Lookups go through hash maps built
+     * once from static tables, and the tables are filled in chunks, so that neither lookup time nor the size of any method
+     * grows with the number of codes beyond {@link #ENUM_CHUNK_SIZE}. The tables live in a nested class, so that the
+     * enum's static initializer only creates the constants, which is what limits the number of codes an enum can have
+     */
+    private void writeEnum(StringBuilder b, String pfx, String name, org.hl7.fhir.r4.model.ValueSet expansion) {
+        List<ValueSetExpansionContainsComponent> contains = expansion.getExpansion().getContains();
+        Set<String> codes = new HashSet<>();
+        w(b, pfx+"public enum "+name+" {");
+        for (int i = 0; i < contains.size(); i++) {
+            ValueSetExpansionContainsComponent cc = contains.get(i);
+            String code = Utilities.javaTokenize(cc.getCode(), true).toUpperCase();
+            if (Utilities.isInteger(code)) {
+                code = "C_"+code;
+            }
+            if (cc.getAbstract()) {
+                code = "_"+code;
+            }
+            if (codes.contains(code)) {
+                char sfx = 'A';
+                while (codes.contains(code+sfx)) {
+                    sfx++;
+                }
+                code = code + sfx;
+            }
+            codes.add(code);
+            String display = cc.getDisplay() == null ? null : cc.getDisplay().replaceAll("\\R", " ");
+            w(b, pfx+"  "+code+(i < contains.size() - 1 ? "," : ";")+" // \""+display+"\" = "+cc.getSystem()+"#"+cc.getCode());
+        }
+        if (contains.isEmpty()) {
+            w(b, pfx+"  ;");
+        }
+        w(b, "");
+        w(b, pfx+"  public static "+name+" fromCode(String s) {");
+        w(b, pfx+"    return s == null ? null : Table.byCode.get(s);");
+        w(b, pfx+"  }");
+        w(b, "");
+        w(b, pfx+"  public static "+name+" fromCoding(Coding c) {");
+        w(b, pfx+"    "+name+" v = Table.bySystemCode.get(c.getSystem()+\"|\"+c.getCode());");
+        w(b, pfx+"    if (v == null || (Table.versions[v.ordinal()] != null && c.hasVersion() && !Table.versions[v.ordinal()].equals(c.getVersion()))) {");
+        w(b, pfx+"      return null;");
+        w(b, pfx+"    }");
+        w(b, pfx+"    return v;");
+        w(b, pfx+"  }");
+        w(b, "");
+        w(b, pfx+"  public static "+name+" fromCodeableConcept(CodeableConcept cc) {");
+        w(b, pfx+"    for (Coding c : cc.getCoding()) {");
+        w(b, pfx+"      "+name+" v = fromCoding(c);");
+        w(b, pfx+"      if (v != null) {");
+        w(b, pfx+"        return v;");
+        w(b, pfx+"      }");
+        w(b, pfx+"    }");
+        w(b, pfx+"    return null;");
+        w(b, pfx+"  }");
+        w(b, "");
+        w(b, pfx+"  public String toDisplay() {");
+        w(b, pfx+"    return Table.displays[ordinal()];");
+        w(b, pfx+"  }");
+        w(b, "");
+        w(b, pfx+"  public String toCode() {");
+        w(b, pfx+"    return Table.codes[ordinal()];");
+        w(b, pfx+"  }");
+        w(b, "");
+        jdoc(b, "@return A new Coding for this code, which the caller may modify", 2+pfx.length(), true);
+        w(b, pfx+"  public Coding toCoding() {");
+        w(b, pfx+"    return Table.prototypes[ordinal()].copy();");
+        w(b, pfx+"  }");
+        w(b, "");
+        w(b, pfx+"  public CodeableConcept toCodeableConcept() {");
+        w(b, pfx+"    return new CodeableConcept().addCoding(toCoding());");
+        w(b, pfx+"  }");
+        w(b, "");
+        jdoc(b, "The tables and lookups of the codes. They are in a class of their own, so that only the constants count towards the limits on the size of the enum's static initializer and constant pool", 2+pfx.length(), true);
+        w(b, pfx+"  private static final class Table {");
+        w(b, pfx+"    private static final String[] systems = new String["+contains.size()+"];");
+        w(b, pfx+"    private static final String[] versions = new String["+contains.size()+"];");
+        w(b, pfx+"    private static final String[] codes = new String["+contains.size()+"];");
+        w(b, pfx+"    private static final String[] displays = new String["+contains.size()+"];");
+        w(b, pfx+"    private static final Coding[] prototypes = new Coding["+contains.size()+"];");
+        w(b, pfx+"    private static final Map<String, "+name+"> byCode = new HashMap<>();");
+        w(b, pfx+"    private static final Map<String, "+name+"> bySystemCode = new HashMap<>();");
+        w(b, "");
+        w(b, pfx+"    static {");
+        for (int chunk = 0; chunk * ENUM_CHUNK_SIZE < contains.size(); chunk++) {
+            w(b, pfx+"      init"+chunk+"();");
+        }
+        w(b, pfx+"      for ("+name+" v : "+name+".values()) {");
+        w(b, pfx+"        int i = v.ordinal();");
+        w(b, pfx+"        prototypes[i] = new Coding().setSystem(systems[i]).setVersion(versions[i]).setCode(codes[i]);");
+        w(b, pfx+"        byCode.putIfAbsent(codes[i], v);");
+        w(b, pfx+"        bySystemCode.putIfAbsent(systems[i]+\"|\"+codes[i], v);");
+        w(b, pfx+"      }");
+        w(b, pfx+"    }");
+        w(b, "");
+        for (int chunk = 0; chunk * ENUM_CHUNK_SIZE < contains.size(); chunk++) {
+            w(b, pfx+"    private static void init"+chunk+"() {");
+            for (int i = chunk * ENUM_CHUNK_SIZE; i < Math.min(contains.size(), (chunk + 1) * ENUM_CHUNK_SIZE); i++) {
+                ValueSetExpansionContainsComponent cc = contains.get(i);
+                w(b, pfx+"      set("+i+", "+literal(cc.getSystem())+", "+literal(cc.getVersion())+", "+literal(cc.getCode())+", "+literal(cc.getDisplay())+");");
+            }
+            w(b, pfx+"    }");
+            w(b, "");
+        }
+        w(b, pfx+"    private static void set(int i, String system, String version, String code, String display) {");
+        w(b, pfx+"      systems[i] = system;");
+        w(b, pfx+"      versions[i] = version;");
+        w(b, pfx+"      codes[i] = code;");
+        w(b, pfx+"      displays[i] = display;");
+        w(b, pfx+"    }");
+        w(b, pfx+"  }");
+        w(b, pfx+"}");
+    }
+
+    private static String literal(String value) {
+        return value == null ? "null" : "\""+Utilities.escapeJava(value)+"\"";
+    }
+
+    private PEGenClass genClass(PEDefinition source) throws IOException {
         PEGenClass cls = new PEGenClass();
         cls.name = Utilities.javaTokenize(source.getProfile().getName(), true);
         cls.base = source.getProfile().getType();
         cls.doco = source.documentation();
         cls.url = source.getProfile().getVersionedUrl();
         cls.isResource = source.getProfile().getKind() == StructureDefinitionKind.RESOURCE;
-        cls.genId();
-        for (PEDefinition child : source.children()) {
-            if (genForField(source, child)) {
-                cls.defineField(source, child);
+        if (direct && cls.isResource) {
+            cls.modelClass = modelClass(cls.base);
+        }
+        // resources loaded directly are cheap to load eagerly
+        cls.lazy = lazyLoad && cls.modelClass == null;
+        cls.tracking = dirtyTracking && cls.modelClass == null;
+        cls.validating = validation;
+        if (jsonCodec && cls.isResource) {
+            cls.jsonModel = modelClass(cls.base);
+        }
+        try {
+            cls.genId();
+            for (PEDefinition child : source.children()) {
+                if (genForField(source, child)) {
+                    cls.defineField(source, child);
+                    cls.spill();
+                }
             }
+        } catch (IOException | RuntimeException e) {
+            cls.discard();
+            throw e;
         }
         return cls;
     }
@@ -947,6 +2756,17 @@ public class PECodeGenerator {
     }
 
 
+    /**
+     * @return The HAPI model class of the resource type, or null if there is none
+     */
+    private Class<?> modelClass(String resourceType) {
+        try {
+            return Class.forName("org.hl7.fhir."+version+".model."+("List".equals(resourceType) ? "ListResource" : resourceType));
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
     private String getPrimitiveType(StructureDefinition sd) {
 
         if (sd.getType().equals("string"))
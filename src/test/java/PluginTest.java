@@ -1,16 +1,67 @@
 import ca.uhn.fhir.jpa.packages.loader.PackageLoaderSvc;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+import org.apache.maven.project.MavenProject;
 import org.hl7.fhir.contrib.CodeGenPlugin;
 
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.hl7.fhir.contrib.ContextBuilder;
+import org.hl7.fhir.contrib.ContextRegistry;
+import org.hl7.fhir.contrib.DependencyResolver;
+import org.hl7.fhir.contrib.PackageFetcher;
+import org.hl7.fhir.contrib.ProfileFingerprints;
+import org.hl7.fhir.contrib.ValueSetExpansionCache;
 
 
 import org.hl7.fhir.r4.context.IWorkerContext;
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.hl7.fhir.r4.conformance.ProfileUtilities;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.ElementDefinition;
+import org.hl7.fhir.r4.model.Enumeration;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.UriType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.profilemodel.PEInstance;
+import org.hl7.fhir.r4.profilemodel.gen.PECodeGenerator;
+import org.hl7.fhir.r4.terminologies.ValueSetExpander;
 import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
 import org.hl7.fhir.utilities.npm.NpmPackage;
 
 import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.tools.ToolProvider;
 
 public class PluginTest extends AbstractMojoTestCase {
 
@@ -47,6 +98,163 @@ public class PluginTest extends AbstractMojoTestCase {
         run(new File(getBasedir(), "src/test/resources/profiles.r4.pom.xml"));
     }
 
+    public void testFilteredR4MojoGoal() throws Exception {
+        run(new File(getBasedir(), "src/test/resources/filter.r4.pom.xml"));
+    }
+
+    public void testConcurrentGenerationIsDeterministic() throws Exception {
+        File pom = new File(getBasedir(), "src/test/resources/concurrent.r4.pom.xml");
+        for (boolean sharedEnums : List.of(false, true)) {
+            String folder = "target/codegen-test/concurrent" + (sharedEnums ? "-shared" : "");
+            CodeGenPlugin sequential = mojo(pom);
+            setVariableValueToObject(sequential, "outputFolder", folder + "-1");
+            setVariableValueToObject(sequential, "threads", 1);
+            setVariableValueToObject(sequential, "sharedEnums", sharedEnums);
+            sequential.execute();
+            CodeGenPlugin concurrent = mojo(pom);
+            setVariableValueToObject(concurrent, "outputFolder", folder + "-4");
+            setVariableValueToObject(concurrent, "threads", 4);
+            setVariableValueToObject(concurrent, "sharedEnums", sharedEnums);
+            concurrent.execute();
+
+            var expected = contents(Path.of(getBasedir(), folder + "-1"));
+            assertTrue(expected.size() > 2);
+            assertEquals(expected, contents(Path.of(getBasedir(), folder + "-4")));
+        }
+    }
+
+    public void testReproducibleGeneration() throws Exception {
+        File pom = new File(getBasedir(), "src/test/resources/concurrent.r4.pom.xml");
+        for (String run : List.of("first", "second")) {
+            CodeGenPlugin mojo = mojo(pom);
+            setVariableValueToObject(mojo, "outputFolder", "target/codegen-test/reproducible-" + run);
+            setVariableValueToObject(mojo, "profiles", Set.of("http://hl7.dk/fhir/core/StructureDefinition/dk-core-patient"));
+            mojo.execute();
+            // a generation time would differ between the runs
+            Thread.sleep(1100);
+        }
+
+        var first = contents(Path.of(getBasedir(), "target/codegen-test/reproducible-first"));
+        assertFalse(first.isEmpty());
+        assertEquals(first, contents(Path.of(getBasedir(), "target/codegen-test/reproducible-second")));
+    }
+
+    public void testLazyContextGeneratesTheSameCode() throws Exception {
+        File pom = new File(getBasedir(), "src/test/resources/concurrent.r4.pom.xml");
+        Set<String> profiles = Set.of("http://hl7.dk/fhir/core/StructureDefinition/dk-core-patient", "http://hl7.dk/fhir/core/StructureDefinition/dk-core-organization");
+        for (boolean lazy : List.of(false, true)) {
+            CodeGenPlugin mojo = mojo(pom);
+            setVariableValueToObject(mojo, "outputFolder", "target/codegen-test/context-" + (lazy ? "lazy" : "eager"));
+            setVariableValueToObject(mojo, "profiles", profiles);
+            setVariableValueToObject(mojo, "lazyContext", lazy);
+            setVariableValueToObject(mojo, "threads", 4);
+            mojo.execute();
+        }
+
+        var eager = contents(Path.of(getBasedir(), "target/codegen-test/context-eager"));
+        assertEquals(3, eager.size());
+        assertEquals(eager, contents(Path.of(getBasedir(), "target/codegen-test/context-lazy")));
+    }
+
+    public void testZeroThreadsIsRejected() throws Exception {
+        CodeGenPlugin mojo = mojo(new File(getBasedir(), "src/test/resources/concurrent.r4.pom.xml"));
+        setVariableValueToObject(mojo, "threads", 0);
+        try {
+            mojo.execute();
+            fail("threads=0 must be rejected");
+        } catch (MojoExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("threads"));
+        }
+    }
+
+    public void testIncrementalGeneration() throws Exception {
+        Path tmp = Files.createTempDirectory("fhir-incremental");
+        NpmPackage dkCore = new FilesystemPackageCacheManager.Builder().build().loadPackage("hl7.fhir.dk.core", "3.4.0");
+        String patient = "http://hl7.dk/fhir/core/StructureDefinition/dk-core-patient";
+        String organization = "http://hl7.dk/fhir/core/StructureDefinition/dk-core-organization";
+        Path tarball = copyPackage(dkCore, tmp.resolve("incremental.tgz"), "example.incremental", null);
+        Path output = tmp.resolve("output");
+        Path classes = output.resolve("org/hl7/fhir/example/incremental");
+        Path report = tmp.resolve("report.json");
+
+        generateIncrementally(tarball, output, report, Set.of(patient, organization));
+        assertEquals(List.of(organization, patient), regeneratedProfiles(report));
+
+        // nothing changed, so nothing is generated or written
+        Map<String, FileTime> written = modificationTimes(output);
+        generateIncrementally(tarball, output, report, Set.of(patient, organization));
+        assertEquals(List.of(), regeneratedProfiles(report));
+        assertEquals(written, modificationTimes(output));
+
+        // a missing shared file is generated again
+        Files.delete(classes.resolve("PEGeneratedSupport.java"));
+        generateIncrementally(tarball, output, report, Set.of(patient, organization));
+        assertEquals(List.of(organization, patient), regeneratedProfiles(report));
+        assertTrue(Files.exists(classes.resolve("PEGeneratedSupport.java")));
+
+        // an Organization never refers to a Patient, so only the patient depends on its profile
+        copyPackage(dkCore, tarball, "example.incremental", patient);
+        generateIncrementally(tarball, output, report, Set.of(patient, organization));
+        assertEquals(List.of(patient), regeneratedProfiles(report));
+
+        // the class of a profile that is no longer generated is deleted
+        List<String> before = generatedClasses(classes);
+        generateIncrementally(tarball, output, report, Set.of(organization));
+        assertEquals(before.size() - 1, generatedClasses(classes).size());
+    }
+
+    public void testFingerprintsCoverContextPackages() throws Exception {
+        Path tmp = Files.createTempDirectory("fhir-fingerprints");
+        NpmPackage dkCore = new FilesystemPackageCacheManager.Builder().build().loadPackage("hl7.fhir.dk.core", "3.4.0");
+        String patient = "http://hl7.dk/fhir/core/StructureDefinition/dk-core-patient";
+        String derived = "http://example.org/StructureDefinition/derived-patient";
+        NpmPackage primary = readPackage(createProfilePackage(tmp.resolve("derived.tgz"), "example.derived", derived, patient));
+        NpmPackage base = readPackage(copyPackage(dkCore, tmp.resolve("base.tgz"), "example.base", null));
+        NpmPackage changed = readPackage(copyPackage(dkCore, tmp.resolve("changed.tgz"), "example.base", patient));
+
+        String fingerprint = new ProfileFingerprints(primary, List.of(primary, base), "").fingerprint(derived);
+        assertEquals(fingerprint, new ProfileFingerprints(primary, List.of(primary, base), "").fingerprint(derived));
+        // the profile derives from the patient profile in the other package
+        assertFalse(fingerprint.equals(new ProfileFingerprints(primary, List.of(primary, changed), "").fingerprint(derived)));
+    }
+
+    private void generateIncrementally(Path tarball, Path output, Path report, Set<String> profiles) throws Exception {
+        CodeGenPlugin mojo = mojo(new File(getBasedir(), "src/test/resources/incremental.r4.pom.xml"));
+        setVariableValueToObject(mojo, "packageId", tarball.toString());
+        setVariableValueToObject(mojo, "outputFolder", output.toString());
+        setVariableValueToObject(mojo, "report", report.toString());
+        setVariableValueToObject(mojo, "profiles", profiles);
+        mojo.execute();
+    }
+
+    /**
+     * @return The canonical URLs of the profiles generated by the run of the report, sorted
+     */
+    private List<String> regeneratedProfiles(Path report) throws IOException {
+        List<String> profiles = new ArrayList<>();
+        new ObjectMapper().readTree(report.toFile()).path("profiles").forEach(p -> profiles.add(p.path("url").asText()));
+        return profiles.stream().sorted().toList();
+    }
+
+    private Map<String, FileTime> modificationTimes(Path folder) throws IOException {
+        Map<String, FileTime> times = new TreeMap<>();
+        try (var files = Files.walk(folder)) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                times.put(folder.relativize(file).toString(), Files.getLastModifiedTime(file));
+            }
+        }
+        return times;
+    }
+
+    public void testSharedEnumsR4MojoGoal() throws Exception {
+        run(new File(getBasedir(), "src/test/resources/sharedenums.r4.pom.xml"));
+
+        Path valuesets = Path.of(getBasedir(), "target/generated-sources/java/org/hl7/fhir/example/sharedenums/valuesets");
+        try (var files = Files.list(valuesets)) {
+            assertTrue(files.anyMatch(f -> f.getFileName().toString().endsWith(".java")));
+        }
+    }
+
     public void testFullurlR4MojoGoal() throws Exception {
         run(new File(getBasedir(), "src/test/resources/fullurl.r4.pom.xml"));
     }
@@ -65,6 +273,615 @@ public class PluginTest extends AbstractMojoTestCase {
         assertEquals(customModel.getId(), convertedCustomModel.getId());*/
     }
 
+    public void testParallelDefinitionsLoader() throws IOException {
+        NpmPackage npmPackage = new FilesystemPackageCacheManager.Builder().build().loadPackage("hl7.fhir.dk.core", "3.4.0");
+
+        var sequential = ContextBuilder.usingR4(npmPackage).withLoaderThreads(1).build();
+        var parallel = ContextBuilder.usingR4(npmPackage).withLoaderThreads(Math.max(2, Runtime.getRuntime().availableProcessors())).build();
+        assertEquals(conformanceResources(sequential), conformanceResources(parallel));
+        assertEquals(sequential.getResourceNames(), parallel.getResourceNames());
+    }
+
+    public void testDefinitionsSnapshot() throws Exception {
+        NpmPackage npmPackage = new FilesystemPackageCacheManager.Builder().build().loadPackage("hl7.fhir.dk.core", "3.4.0");
+        Path cache = Files.createTempDirectory("fhir-snapshots");
+
+        Set<String> cold = conformanceResources(ContextBuilder.usingR4(npmPackage).withSnapshotCache(null).build());
+        assertEquals(cold, conformanceResources(ContextBuilder.usingR4(npmPackage).withSnapshotCache(cache).build()));
+        Path snapshot;
+        try (var files = Files.list(cache)) {
+            snapshot = files.filter(f -> f.getFileName().toString().endsWith(".ser.gz")).findFirst().orElseThrow();
+        }
+        FileTime stored = Files.getLastModifiedTime(snapshot);
+
+        // the package resources come from the snapshot as well, so the restored context is the same as a cold one
+        assertEquals(cold, conformanceResources(ContextBuilder.usingR4(npmPackage).withSnapshotCache(cache).build()));
+        assertEquals(stored, Files.getLastModifiedTime(snapshot));
+
+        Thread.sleep(1100);
+        assertEquals(cold, conformanceResources(ContextBuilder.usingR4(npmPackage).withSnapshotCache(cache).refreshSnapshot(true).build()));
+        assertTrue(Files.getLastModifiedTime(snapshot).compareTo(stored) > 0);
+    }
+
+    private Set<String> conformanceResources(IWorkerContext workerContext) {
+        return workerContext.allConformanceResources().stream().map(r -> r.fhirType() + "|" + r.getUrl() + "|" + r.getVersion()).collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    public void testValueSetExpansionCache() throws Exception {
+        var workerContext = createWorkerContextR4Example("hl7.fhir.dk.core", "3.4.0");
+        var vs = workerContext.fetchResource(org.hl7.fhir.r4.model.ValueSet.class, "http://hl7.org/fhir/ValueSet/administrative-gender");
+        Path file = Files.createTempDirectory("fhir-expansions").resolve("expansions.json");
+
+        var cache = ValueSetExpansionCache.load(file);
+        assertTrue(cache.expand(workerContext, vs).isOk());
+        var outcome = cache.expand(workerContext, vs);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        cache.save();
+
+        var reloaded = ValueSetExpansionCache.load(file);
+        assertEquals(outcome.getValueset().getExpansion().getContains().size(), reloaded.expand(workerContext, vs).getValueset().getExpansion().getContains().size());
+        assertEquals(1, reloaded.getHits());
+        assertEquals(0, reloaded.getMisses());
+    }
+
+    public void testMultiplePackagesR4MojoGoal() throws Exception {
+        run(new File(getBasedir(), "src/test/resources/multi.r4.pom.xml"));
+
+        Path output = Path.of(getBasedir(), "target/codegen-test/multi/org/hl7/fhir/example/multi");
+        assertFalse(generatedClasses(output.resolve("dk")).isEmpty());
+        assertFalse(generatedClasses(output.resolve("dk/ehealth/sundhed/fhir/ig/core")).isEmpty());
+    }
+
+    public void testResolveDependencies() throws Exception {
+        Path tmp = Files.createTempDirectory("fhir-dependencies");
+        var registry = ContextRegistry.forSession(null);
+        AtomicInteger fetches = new AtomicInteger();
+        ContextRegistry.PackageSource source = path -> {
+            fetches.incrementAndGet();
+            try (var in = Files.newInputStream(Path.of(path))) {
+                return NpmPackage.fromPackage(in);
+            }
+        };
+        NpmPackage shared = registry.fetchPackage("example.shared#1.0.0", s -> source.fetch(createPackage(tmp.resolve("shared.tgz"), "example.shared", "1.0.0", "hl7.fhir.r4.core#4.0.1").toString()));
+        registry.fetchPackage("example.left#1.0.0", s -> source.fetch(createPackage(tmp.resolve("left.tgz"), "example.left", "1.0.0", "example.shared#1.0.0").toString()));
+        registry.fetchPackage("example.right#1.0.0", s -> source.fetch(createPackage(tmp.resolve("right.tgz"), "example.right", "1.0.0", "example.shared#1.0.0").toString()));
+        NpmPackage root = source.fetch(createPackage(tmp.resolve("root.tgz"), "example.root", "1.0.0", "example.left#1.0.0", "example.right#1.0.0").toString());
+
+        // the core package is skipped, and everything else comes from the registry
+        var resolved = new DependencyResolver(registry, 4).resolve(List.of(root));
+        assertEquals(List.of("example.root", "example.left", "example.right", "example.shared"), resolved.stream().map(NpmPackage::id).toList());
+        assertSame(shared, resolved.get(3));
+        assertEquals(4, fetches.get());
+    }
+
+    public void testSessionContextRegistry() throws Exception {
+        MavenSession session = newMavenSession(new MavenProject());
+        NpmPackage npmPackage = new FilesystemPackageCacheManager.Builder().build().loadPackage("hl7.fhir.dk.core", "3.4.0");
+        AtomicInteger builds = new AtomicInteger();
+
+        // the modules of a parallel build each get their own clone of the session
+        var first = ContextRegistry.forSession(session.clone()).context("r4", npmPackage, "eager", () -> {
+            builds.incrementAndGet();
+            return ContextBuilder.usingR4(npmPackage).build();
+        });
+        var second = ContextRegistry.forSession(session.clone()).context("r4", npmPackage, "eager", () -> {
+            builds.incrementAndGet();
+            return ContextBuilder.usingR4(npmPackage).build();
+        });
+        assertSame(first, second);
+        assertEquals(1, builds.get());
+        assertNotSame(ContextRegistry.forSession(session), ContextRegistry.forSession(newMavenSession(new MavenProject())));
+        assertNotSame(ContextRegistry.forSession(null), ContextRegistry.forSession(null));
+    }
+
+    public void testCachedProfileDefinition() throws Exception {
+        run(new File(getBasedir(), "src/test/resources/patient.r4.pom.xml"));
+        Path sources = Path.of(getBasedir(), "target/codegen-test/patient");
+        ClassLoader loader = compile(sources);
+        var workerContext = createWorkerContextR4Example("hl7.fhir.dk.core", "3.4.0");
+        String url = "http://hl7.dk/fhir/core/StructureDefinition/dk-core-patient";
+
+        Method instance = loader.loadClass("org.hl7.fhir.example.patient.PEGeneratedSupport").getMethod("instance", IWorkerContext.class, String.class, Base.class);
+        var first = (PEInstance) instance.invoke(null, workerContext, url, new Patient());
+        var second = (PEInstance) instance.invoke(null, workerContext, url, new Patient());
+        assertSame(first.definition(), second.definition());
+
+        // definitions aren't thread safe, so another thread resolves its own
+        var other = new PEInstance[1];
+        Thread thread = new Thread(() -> {
+            try {
+                other[0] = (PEInstance) instance.invoke(null, workerContext, url, new Patient());
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNotNull(other[0]);
+        assertNotSame(first.definition(), other[0].definition());
+    }
+
+    public void testDirectModeRoundTrip() throws Exception {
+        run(new File(getBasedir(), "src/test/resources/patient.r4.pom.xml"));
+        run(new File(getBasedir(), "src/test/resources/patient.direct.r4.pom.xml"));
+        Path profileSources = Path.of(getBasedir(), "target/codegen-test/patient");
+        Path directSources = Path.of(getBasedir(), "target/codegen-test/patientdirect");
+        String className = generatedClasses(profileSources).get(0);
+        Class<?> profileClass = compile(profileSources).loadClass("org.hl7.fhir.example.patient." + className);
+        Class<?> directClass = compile(directSources).loadClass("org.hl7.fhir.example.patientdirect." + className);
+        var workerContext = createWorkerContextR4Example("hl7.fhir.dk.core", "3.4.0");
+
+        Patient patient = new Patient().setActive(true).setGender(Enumerations.AdministrativeGender.FEMALE);
+        patient.setId("p1");
+        patient.setBirthDateElement(new DateType("1970-01-01"));
+        patient.addIdentifier().setSystem("urn:oid:1.2.208.176.1.2").setValue("0101701234");
+        patient.addName().setFamily("Hansen").addGiven("Jens");
+        patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("12345678");
+        patient.addExtension("http://example.org/unknown", new StringType("kept"));
+
+        var parser = FhirContext.forR4().newJsonParser();
+        Object profileModel = profileClass.getMethod("fromSource", IWorkerContext.class, Patient.class).invoke(null, workerContext, patient);
+        Object directModel = directClass.getMethod("fromSource", IWorkerContext.class, Patient.class).invoke(null, workerContext, patient);
+        Patient fromProfile = (Patient) profileClass.getMethod("build").invoke(profileModel);
+        Patient fromDirect = (Patient) directClass.getMethod("build").invoke(directModel);
+        assertEquals(parser.encodeResourceToString(fromProfile), parser.encodeResourceToString(fromDirect));
+
+        Patient savedByProfile = patient.copy();
+        Patient savedByDirect = patient.copy();
+        profileClass.getMethod("save", IWorkerContext.class, Patient.class, boolean.class).invoke(profileModel, workerContext, savedByProfile, false);
+        directClass.getMethod("save", IWorkerContext.class, Patient.class, boolean.class).invoke(directModel, workerContext, savedByDirect, false);
+        assertEquals(parser.encodeResourceToString(savedByProfile), parser.encodeResourceToString(savedByDirect));
+    }
+
+    public void testDirectModeSliceRoundTrip() throws Exception {
+        var workerContext = createWorkerContextR4Example("hl7.fhir.dk.core", "3.4.0");
+        StructureDefinition profile = slicedPatientProfile(workerContext);
+        Path profileSources = Path.of(getBasedir(), "target/codegen-test/patientsliced");
+        Path directSources = Path.of(getBasedir(), "target/codegen-test/patientsliceddirect");
+        codeGenerator(workerContext, profile.getUrl(), profileSources, "org.hl7.fhir.example.patientsliced").execute();
+        var directGenerator = codeGenerator(workerContext, profile.getUrl(), directSources, "org.hl7.fhir.example.patientsliceddirect");
+        directGenerator.setDirect(true);
+        directGenerator.execute();
+        String className = generatedClasses(profileSources).get(0);
+        String directSource = Files.readString(directSources.resolve(className + ".java"));
+        assertFalse(directSource.contains("// mrn: through the profile model"));
+        assertFalse(directSource.contains("// ssn: through the profile model"));
+        Class<?> profileClass = compile(profileSources).loadClass("org.hl7.fhir.example.patientsliced." + className);
+        Class<?> directClass = compile(directSources).loadClass("org.hl7.fhir.example.patientsliceddirect." + className);
+
+        Patient patient = new Patient().setActive(true);
+        patient.addIdentifier().setSystem("urn:oid:1.2.3.4").setValue("ssn-1");
+        patient.addIdentifier().setSystem("http://example.org/other").setValue("other");
+        patient.addIdentifier().setSystem("http://example.org/mrn").setValue("mrn");
+        patient.addIdentifier().setSystem("urn:oid:1.2.3.4").setValue("ssn-2");
+
+        var parser = FhirContext.forR4().newJsonParser();
+        Object profileModel = profileClass.getMethod("fromSource", IWorkerContext.class, Patient.class).invoke(null, workerContext, patient);
+        Object directModel = directClass.getMethod("fromSource", IWorkerContext.class, Patient.class).invoke(null, workerContext, patient);
+        assertEquals("mrn", ((Identifier) directClass.getMethod("getMrn").invoke(directModel)).getValue());
+        assertEquals(2, ((List<?>) directClass.getMethod("getSsns").invoke(directModel)).size());
+        Patient fromProfile = (Patient) profileClass.getMethod("build").invoke(profileModel);
+        Patient fromDirect = (Patient) directClass.getMethod("build").invoke(directModel);
+        assertEquals(parser.encodeResourceToString(fromProfile), parser.encodeResourceToString(fromDirect));
+
+        Patient savedByProfile = patient.copy();
+        Patient savedByDirect = patient.copy();
+        profileClass.getMethod("save", IWorkerContext.class, Patient.class, boolean.class).invoke(profileModel, workerContext, savedByProfile, false);
+        directClass.getMethod("save", IWorkerContext.class, Patient.class, boolean.class).invoke(directModel, workerContext, savedByDirect, false);
+        assertEquals(parser.encodeResourceToString(savedByProfile), parser.encodeResourceToString(savedByDirect));
+    }
+
+    /**
+     * A Patient profile that slices the identifiers by system: an mrn slice with a fixed system, and a repeating ssn slice
+     * with a pattern
+     */
+    private StructureDefinition slicedPatientProfile(IWorkerContext workerContext) {
+        var profile = patientProfile("SlicedPatient");
+        var differential = profile.getDifferential();
+        var identifier = differential.addElement().setPath("Patient.identifier").setMustSupport(true);
+        identifier.setId("Patient.identifier");
+        identifier.getSlicing().setRules(ElementDefinition.SlicingRules.OPEN).addDiscriminator().setType(ElementDefinition.DiscriminatorType.VALUE).setPath("system");
+        var mrn = differential.addElement().setPath("Patient.identifier").setSliceName("mrn").setMin(0).setMax("1").setMustSupport(true);
+        mrn.setId("Patient.identifier:mrn");
+        var mrnSystem = differential.addElement().setPath("Patient.identifier.system").setMin(1).setFixed(new UriType("http://example.org/mrn"));
+        mrnSystem.setId("Patient.identifier:mrn.system");
+        var ssn = differential.addElement().setPath("Patient.identifier").setSliceName("ssn").setMin(0).setMax("*").setMustSupport(true);
+        ssn.setId("Patient.identifier:ssn");
+        var ssnSystem = differential.addElement().setPath("Patient.identifier.system").setMin(1).setPattern(new UriType("urn:oid:1.2.3.4"));
+        ssnSystem.setId("Patient.identifier:ssn.system");
+        return register(workerContext, profile);
+    }
+
+    private StructureDefinition patientProfile(String name) {
+        var profile = new StructureDefinition();
+        profile.setUrl("http://example.org/fhir/StructureDefinition/" + name);
+        profile.setName(name);
+        profile.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        profile.setKind(StructureDefinition.StructureDefinitionKind.RESOURCE);
+        profile.setAbstract(false);
+        profile.setType("Patient");
+        profile.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/Patient");
+        profile.setDerivation(StructureDefinition.TypeDerivationRule.CONSTRAINT);
+        return profile;
+    }
+
+    /**
+     * Generates the snapshot of the profile from its differential, and adds it to the context
+     */
+    private StructureDefinition register(IWorkerContext workerContext, StructureDefinition profile) {
+        var base = workerContext.fetchResource(StructureDefinition.class, profile.getBaseDefinition());
+        new ProfileUtilities(workerContext, new ArrayList<>(), null).generateSnapshot(base, profile, profile.getUrl(), "http://example.org/fhir", profile.getName());
+        workerContext.cacheResource(profile);
+        return profile;
+    }
+
+    private PECodeGenerator codeGenerator(IWorkerContext workerContext, String canonicalUrl, Path folder, String packageName) throws IOException {
+        Files.createDirectories(folder);
+        var codeGenerator = new PECodeGenerator(workerContext);
+        codeGenerator.setFolder(folder.toString());
+        codeGenerator.setCanonical(canonicalUrl);
+        codeGenerator.setPkgName(packageName);
+        codeGenerator.setExtensionPolicy(PECodeGenerator.ExtensionPolicy.Complexes);
+        codeGenerator.setNarrative(true);
+        codeGenerator.setMeta(true);
+        codeGenerator.setKeyElementsOnly(true);
+        codeGenerator.setGenDate(null);
+        return codeGenerator;
+    }
+
+    public void testDatatypeClassesOnlyImportWhatTheyUse() throws Exception {
+        var workerContext = createWorkerContextR4Example("hl7.fhir.dk.core", "3.4.0");
+        Path sources = Path.of(getBasedir(), "target/codegen-test/identifier");
+        codeGenerator(workerContext, "http://hl7.dk/fhir/core/StructureDefinition/dk-core-gln-identifier", sources, "org.hl7.fhir.example.identifier").execute();
+        String source = Files.readString(sources.resolve(generatedClasses(sources).get(0) + ".java"));
+        for (String unused : List.of("java.io.IOException", "java.nio.file.Path", "java.util.concurrent.ExecutorService", "java.util.stream.Stream")) {
+            assertFalse(unused, source.contains("import " + unused + ";"));
+        }
+        compile(sources);
+    }
+
+    public void testLargeRequiredBindingIsAnEnum() throws Exception {
+        var workerContext = createWorkerContextR4Example("hl7.fhir.dk.core", "3.4.0");
+        var valueSet = new ValueSet();
+        valueSet.setUrl("http://example.org/fhir/ValueSet/large-codes");
+        valueSet.setName("LargeCodes");
+        valueSet.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        for (int i = 0; i < 3000; i++) {
+            valueSet.getExpansion().addContains().setSystem("http://example.org/fhir/CodeSystem/large-codes").setCode("code-" + i).setDisplay("Code " + i);
+        }
+        workerContext.cacheResource(valueSet);
+        var profile = patientProfile("LargeBindingPatient");
+        profile.getDifferential().addElement().setPath("Patient.maritalStatus").setMustSupport(true).getBinding()
+                .setStrength(Enumerations.BindingStrength.REQUIRED).setValueSet(valueSet.getUrl());
+        register(workerContext, profile);
+        PECodeGenerator.ExpansionProvider expansions = (context, vs) -> new ValueSetExpander.ValueSetExpansionOutcome(valueSet);
+
+        Path sources = Path.of(getBasedir(), "target/codegen-test/largebinding");
+        var codeGenerator = codeGenerator(workerContext, profile.getUrl(), sources, "org.hl7.fhir.example.largebinding");
+        codeGenerator.setExpansionProvider(expansions);
+        codeGenerator.execute();
+        String className = generatedClasses(sources).get(0);
+        Class<?> codes = compile(sources).loadClass("org.hl7.fhir.example.largebinding." + className + "$LargeCode");
+        Object last = codes.getMethod("fromCode", String.class).invoke(null, "code-2999");
+        assertEquals("Code 2999", codes.getMethod("toDisplay").invoke(last));
+
+        // over the limit, the binding is a plain code
+        Path capped = Path.of(getBasedir(), "target/codegen-test/largebindingcapped");
+        codeGenerator = codeGenerator(workerContext, profile.getUrl(), capped, "org.hl7.fhir.example.largebindingcapped");
+        codeGenerator.setExpansionProvider(expansions);
+        codeGenerator.setMaxEnumCodes(1000);
+        codeGenerator.execute();
+        assertFalse(Files.readString(capped.resolve(className + ".java")).contains("enum LargeCode"));
+    }
+
+    public void testLazyLoadRoundTrip() throws Exception {
+        run(new File(getBasedir(), "src/test/resources/patient.r4.pom.xml"));
+        run(new File(getBasedir(), "src/test/resources/patient.lazy.r4.pom.xml"));
+        Path profileSources = Path.of(getBasedir(), "target/codegen-test/patient");
+        Path lazySources = Path.of(getBasedir(), "target/codegen-test/patientlazy");
+        String className = generatedClasses(profileSources).get(0);
+        Class<?> profileClass = compile(profileSources).loadClass("org.hl7.fhir.example.patient." + className);
+        Class<?> lazyClass = compile(lazySources).loadClass("org.hl7.fhir.example.patientlazy." + className);
+        var workerContext = createWorkerContextR4Example("hl7.fhir.dk.core", "3.4.0");
+
+        Patient patient = new Patient().setActive(true).setGender(Enumerations.AdministrativeGender.FEMALE);
+        patient.setId("p1");
+        patient.addIdentifier().setSystem("urn:oid:1.2.208.176.1.2").setValue("0101701234");
+        patient.addName().setFamily("Hansen").addGiven("Jens");
+
+        Object lazyModel = lazyClass.getMethod("fromSource", IWorkerContext.class, Patient.class).invoke(null, workerContext, patient);
+        List<?> names = (List<?>) lazyClass.getMethod("getNames").invoke(lazyModel);
+        assertEquals(1, names.size());
+
+        var parser = FhirContext.forR4().newJsonParser();
+        Object profileModel = profileClass.getMethod("fromSource", IWorkerContext.class, Patient.class).invoke(null, workerContext, patient);
+        Patient fromProfile = (Patient) profileClass.getMethod("build").invoke(profileModel);
+        Patient fromLazy = (Patient) lazyClass.getMethod("build").invoke(lazyModel);
+        assertEquals(parser.encodeResourceToString(fromProfile), parser.encodeResourceToString(fromLazy));
+
+        // a set element isn't loaded from the source over the new value
+        lazyModel = lazyClass.getMethod("fromSource", IWorkerContext.class, Patient.class).invoke(null, workerContext, patient);
+        lazyClass.getMethod("setActive", boolean.class).invoke(lazyModel, false);
+        assertFalse(((Patient) lazyClass.getMethod("build").invoke(lazyModel)).getActive());
+    }
+
+    public void testLazyLoadOnAnotherThread() throws Exception {
+        run(new File(getBasedir(), "src/test/resources/patient.r4.pom.xml"));
+        run(new File(getBasedir(), "src/test/resources/patient.lazy.r4.pom.xml"));
+        Path profileSources = Path.of(getBasedir(), "target/codegen-test/patient");
+        Path lazySources = Path.of(getBasedir(), "target/codegen-test/patientlazy");
+        String className = generatedClasses(profileSources).get(0);
+        Class<?> profileClass = compile(profileSources).loadClass("org.hl7.fhir.example.patient." + className);
+        Class<?> lazyClass = compile(lazySources).loadClass("org.hl7.fhir.example.patientlazy." + className);
+        var workerContext = createWorkerContextR4Example("hl7.fhir.dk.core", "3.4.0");
+
+        Patient patient = new Patient().setActive(true).setGender(Enumerations.AdministrativeGender.FEMALE);
+        patient.addIdentifier().setSystem("urn:oid:1.2.208.176.1.2").setValue("0101701234");
+        patient.addName().setFamily("Hansen").addGiven("Jens");
+
+        // loaded on one pool thread, and first read on another, as the bulk conversions on an executor hand them over
+        ExecutorService loader = Executors.newSingleThreadExecutor();
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Method fromSource = lazyClass.getMethod("fromSource", IWorkerContext.class, Patient.class);
+            Object lazyModel = loader.submit(() -> fromSource.invoke(null, workerContext, patient)).get();
+            Patient fromLazy = (Patient) reader.submit(() -> lazyClass.getMethod("build").invoke(lazyModel)).get();
+
+            var parser = FhirContext.forR4().newJsonParser();
+            Object profileModel = profileClass.getMethod("fromSource", IWorkerContext.class, Patient.class).invoke(null, workerContext, patient);
+            Patient fromProfile = (Patient) profileClass.getMethod("build").invoke(profileModel);
+            assertEquals(parser.encodeResourceToString(fromProfile), parser.encodeResourceToString(fromLazy));
+        } finally {
+            loader.shutdown();
+            reader.shutdown();
+        }
+    }
+
+    public void testDirtyTrackingOnlySavesModifiedElements() throws Exception {
+        run(new File(getBasedir(), "src/test/resources/patient.dirty.r4.pom.xml"));
+        Path sources = Path.of(getBasedir(), "target/codegen-test/patientdirty");
+        Class<?> profileClass = compile(sources).loadClass("org.hl7.fhir.example.patientdirty." + generatedClasses(sources).get(0));
+        var workerContext = createWorkerContextR4Example("hl7.fhir.dk.core", "3.4.0");
+
+        Patient patient = new Patient().setActive(true);
+        patient.setId("p1");
+        var name = patient.addName().setFamily("Hansen").addGiven("Jens");
+
+        Object model = profileClass.getMethod("fromSource", IWorkerContext.class, Patient.class).invoke(null, workerContext, patient);
+        profileClass.getMethod("setActive", boolean.class).invoke(model, false);
+        profileClass.getMethod("save", IWorkerContext.class, Patient.class, boolean.class).invoke(model, workerContext, patient, false);
+        assertFalse(patient.getActive());
+        // the names weren't touched, so they haven't been rebuilt
+        assertSame(name, patient.getNameFirstRep());
+
+        profileClass.getMethod("setActive", boolean.class).invoke(model, true);
+        Patient built = (Patient) profileClass.getMethod("build").invoke(model);
+        assertTrue(built.getActive());
+        assertEquals("Hansen", built.getNameFirstRep().getFamily());
+        assertFalse(patient.getActive());
+    }
+
+    public void testJsonCodecMatchesHapiParser() throws Exception {
+        run(new File(getBasedir(), "src/test/resources/patient.json.r4.pom.xml"));
+        Path sources = Path.of(getBasedir(), "target/codegen-test/patientjson");
+        Class<?> profileClass = compile(sources).loadClass("org.hl7.fhir.example.patientjson." + generatedClasses(sources).get(0));
+        var workerContext = createWorkerContextR4Example("hl7.fhir.dk.core", "3.4.0");
+
+        Patient patient = new Patient().setActive(true).setGender(Enumerations.AdministrativeGender.FEMALE);
+        patient.setId("p1");
+        patient.setBirthDateElement(new DateType("1970-01-01"));
+        patient.addIdentifier().setSystem("urn:oid:1.2.208.176.1.2").setValue("0101701234");
+        patient.addName().setFamily("Hansen").addGiven("Jens");
+        patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE).setValue("12345678");
+
+        var parser = FhirContext.forR4().newJsonParser();
+        Object model = profileClass.getMethod("fromSource", IWorkerContext.class, Patient.class).invoke(null, workerContext, patient);
+        String json = (String) profileClass.getMethod("toJson").invoke(model);
+        assertEquals(parser.encodeResourceToString((Patient) profileClass.getMethod("build").invoke(model)), json);
+
+        Object read = profileClass.getMethod("fromJson", IWorkerContext.class, String.class).invoke(null, workerContext, json);
+        assertEquals(json, profileClass.getMethod("toJson").invoke(read));
+    }
+
+    public void testValidateReportsCodesOutsideTheRequiredBinding() throws Exception {
+        run(new File(getBasedir(), "src/test/resources/patient.validation.r4.pom.xml"));
+        Path sources = Path.of(getBasedir(), "target/codegen-test/patientvalidation");
+        Class<?> profileClass = compile(sources).loadClass("org.hl7.fhir.example.patientvalidation." + generatedClasses(sources).get(0));
+        var workerContext = createWorkerContextR4Example("hl7.fhir.dk.core", "3.4.0");
+
+        Patient patient = new Patient().setActive(true).setGender(Enumerations.AdministrativeGender.FEMALE);
+        patient.setId("p1");
+        patient.addName().setFamily("Hansen").addGiven("Jens");
+        Object model = profileClass.getMethod("fromSource", IWorkerContext.class, Patient.class).invoke(null, workerContext, patient);
+        List<?> issues = (List<?>) profileClass.getMethod("validate").invoke(model);
+        assertFalse(issues.toString(), issues.toString().contains("Patient.gender"));
+
+        // the model classes reject unknown codes, so pretend one was parsed
+        patient.setGenderElement(new Enumeration<>(new Enumerations.AdministrativeGenderEnumFactory()) {
+            @Override
+            public String getValueAsString() {
+                return "bogus";
+            }
+
+            @Override
+            public String primitiveValue() {
+                return "bogus";
+            }
+        });
+        model = profileClass.getMethod("fromSource", IWorkerContext.class, Patient.class).invoke(null, workerContext, patient);
+        issues = (List<?>) profileClass.getMethod("validate").invoke(model);
+        assertTrue(issues.toString(), issues.toString().contains("Patient.gender: the code isn't in the required ValueSet"));
+
+        profileClass.getMethod("setGender", profileClass.getMethod("getGender").getReturnType()).invoke(model, (Object) null);
+        issues = (List<?>) profileClass.getMethod("validate").invoke(model);
+        assertFalse(issues.toString(), issues.toString().contains("Patient.gender"));
+    }
+
+    public void testGenerationReport() throws Exception {
+        Path file = Path.of(getBasedir(), "target/codegen-test/fhir-codegen-report.json");
+        Files.deleteIfExists(file);
+        run(new File(getBasedir(), "src/test/resources/report.r4.pom.xml"));
+
+        var report = new ObjectMapper().readTree(file.toFile());
+        for (String phase : List.of("validatePackage", "contextBuild", "buildDefinition", "expandValueSets", "emit", "write", "generate")) {
+            assertTrue(phase, report.path("phases").has(phase));
+        }
+        assertEquals(1, report.path("profiles").size());
+        var profile = report.path("profiles").get(0);
+        assertEquals("http://hl7.dk/fhir/core/StructureDefinition/dk-core-patient", profile.path("url").asText());
+        assertEquals(1, profile.path("phases").path("buildDefinition").path("count").asInt());
+        assertTrue(profile.path("phases").path("emit").path("callingThreadAllocatedBytes").asLong() != 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testBulkConversion() throws Exception {
+        run(new File(getBasedir(), "src/test/resources/patient.r4.pom.xml"));
+        Path sources = Path.of(getBasedir(), "target/codegen-test/patient");
+        Class<?> profileClass = compile(sources).loadClass("org.hl7.fhir.example.patient." + generatedClasses(sources).get(0));
+        var workerContext = createWorkerContextR4Example("hl7.fhir.dk.core", "3.4.0");
+
+        var parser = FhirContext.forR4().newJsonParser();
+        var bundle = new Bundle();
+        Path ndjson = Files.createTempFile("patients", ".ndjson");
+        try (var writer = Files.newBufferedWriter(ndjson)) {
+            for (int i = 0; i < 100; i++) {
+                Patient patient = new Patient().setActive(i % 2 == 0);
+                patient.setId("p" + i);
+                bundle.addEntry().setResource(patient);
+                writer.write(parser.encodeResourceToString(patient));
+                writer.newLine();
+            }
+        }
+        List<String> expected = bundle.getEntry().stream().map(e -> e.getResource().getIdElement().getIdPart()).toList();
+
+        Method getId = profileClass.getMethod("getId");
+        var fromBundle = (List<Object>) profileClass.getMethod("fromBundle", IWorkerContext.class, Bundle.class).invoke(null, workerContext, bundle);
+        assertEquals(expected, fromBundle.stream().map(m -> invoke(getId, m)).toList());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (var models = (Stream<Object>) profileClass.getMethod("fromNdjson", IWorkerContext.class, Path.class, ExecutorService.class, int.class).invoke(null, workerContext, ndjson, executor, 8)) {
+            List<Object> converted = models.toList();
+            assertEquals(expected, converted.stream().map(m -> invoke(getId, m)).toList());
+
+            var built = (Stream<Patient>) profileClass.getMethod("buildAll", IWorkerContext.class, Stream.class, ExecutorService.class, int.class).invoke(null, workerContext, converted.stream(), executor, 8);
+            assertEquals(expected, built.map(p -> p.getIdElement().getIdPart()).toList());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Object invoke(Method method, Object target) {
+        try {
+            return method.invoke(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void testFetchPackageFromFile() throws Exception {
+        Path tmp = Files.createTempDirectory("fhir-fetch");
+        Path tarball = createPackage(tmp.resolve("example.tgz"), "example.fetch.file", "1.0.0");
+        var fetcher = new PackageFetcher(new FilesystemPackageCacheManager.Builder().withCacheFolder(tmp.resolve("packages").toString()).build(), tmp.resolve("sources"));
+
+        var first = fetcher.fetch(tarball.toUri().toString());
+        assertEquals("example.fetch.file", first.id());
+        assertEquals("1.0.0", first.version());
+        assertEquals("1.0.0", fetcher.fetch(tarball.toUri().toString()).version());
+    }
+
+    public void testFetchPackageInstalledFromAnotherSource() throws Exception {
+        Path tmp = Files.createTempDirectory("fhir-fetch");
+        Path tarball = createPackage(tmp.resolve("example.tgz"), "example.fetch.other", "1.0.0");
+        Path copy = Files.copy(tarball, tmp.resolve("copy.tgz"));
+        var fetcher = new PackageFetcher(new FilesystemPackageCacheManager.Builder().withCacheFolder(tmp.resolve("packages").toString()).build(), tmp.resolve("sources"));
+
+        var first = fetcher.fetch(tarball.toString());
+        Path marker = Files.createFile(Path.of(first.getPath()).resolve("marker"));
+        // the same content from another source isn't extracted again
+        assertEquals("1.0.0", fetcher.fetch(copy.toString()).version());
+        assertTrue(Files.exists(marker));
+
+        // but different content under the same id#version is
+        createPackage(copy, "example.fetch.other", "1.0.0", "example.shared#1.0.0");
+        assertEquals("1.0.0", fetcher.fetch(copy.toString()).version());
+        assertFalse(Files.exists(marker));
+    }
+
+    public void testConcurrentFetchOfSamePackage() throws Exception {
+        Path tmp = Files.createTempDirectory("fhir-fetch");
+        Path tarball = createPackage(tmp.resolve("example.tgz"), "example.fetch.concurrent", "1.0.0");
+        var packageManager = new FilesystemPackageCacheManager.Builder().withCacheFolder(tmp.resolve("packages").toString()).build();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<java.util.concurrent.Future<NpmPackage>> fetches = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                // separate fetchers, as separate executions of a parallel build would use
+                var fetcher = new PackageFetcher(packageManager, tmp.resolve("sources"));
+                fetches.add(executor.submit(() -> fetcher.fetch(tarball.toString())));
+            }
+            for (var fetch : fetches) {
+                assertEquals("example.fetch.concurrent", fetch.get().id());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testFetchPackageFromHttpIsConditional() throws Exception {
+        Path tmp = Files.createTempDirectory("fhir-fetch");
+        byte[] content = Files.readAllBytes(createPackage(tmp.resolve("example.tgz"), "example.fetch.http", "1.0.0"));
+        var fetcher = new PackageFetcher(new FilesystemPackageCacheManager.Builder().withCacheFolder(tmp.resolve("packages").toString()).build(), tmp.resolve("sources"));
+
+        var downloads = new AtomicInteger();
+        var server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/package.tgz", exchange -> {
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                downloads.incrementAndGet();
+                exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                exchange.sendResponseHeaders(200, content.length);
+                exchange.getResponseBody().write(content);
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/package.tgz";
+            assertEquals("example.fetch.http", fetcher.fetch(url).id());
+            assertEquals("example.fetch.http", fetcher.fetch(url).id());
+            assertEquals(1, downloads.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    public void testFetchPackageFromHttpWithoutValidators() throws Exception {
+        Path tmp = Files.createTempDirectory("fhir-fetch");
+        byte[] content = Files.readAllBytes(createPackage(tmp.resolve("example.tgz"), "example.fetch.plain", "1.0.0"));
+        var fetcher = new PackageFetcher(new FilesystemPackageCacheManager.Builder().withCacheFolder(tmp.resolve("packages").toString()).build(), tmp.resolve("sources"));
+
+        var downloads = new AtomicInteger();
+        var server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/package.tgz", exchange -> {
+            downloads.incrementAndGet();
+            exchange.sendResponseHeaders(200, content.length);
+            exchange.getResponseBody().write(content);
+            exchange.close();
+        });
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/package.tgz";
+            assertEquals("example.fetch.plain", fetcher.fetch(url).id());
+            assertEquals("example.fetch.plain", fetcher.fetch(url).id());
+            assertEquals(1, downloads.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
     public void testFullurlR5MojoGoal() throws Exception {
         run(new File(getBasedir(), "src/test/resources/fullurl.r5.pom.xml"));
 
@@ -72,7 +889,115 @@ public class PluginTest extends AbstractMojoTestCase {
     }
 
     private void run(File pomFile) throws Exception {
-        ((CodeGenPlugin) lookupMojo("generate", pomFile)).execute();
+        mojo(pomFile).execute();
+    }
+
+    private CodeGenPlugin mojo(File pomFile) throws Exception {
+        return (CodeGenPlugin) lookupMojo("generate", pomFile);
+    }
+
+    /**
+     * @return The content of the generated sources below the folder by their relative path, leaving out the manifest
+     */
+    private Map<String, String> contents(Path folder) throws IOException {
+        Map<String, String> contents = new TreeMap<>();
+        try (var files = Files.walk(folder)) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".java")).toList()) {
+                contents.put(folder.relativize(file).toString(), Files.readString(file));
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * Compiles the generated sources against the test class path
+     */
+    private ClassLoader compile(Path sources) throws IOException {
+        Path classes = Files.createTempDirectory("fhir-codegen-classes");
+        List<String> args = new ArrayList<>(List.of("-d", classes.toString(), "-classpath", System.getProperty("java.class.path"), "-nowarn", "-proc:none"));
+        try (var files = Files.walk(sources)) {
+            files.filter(f -> f.toString().endsWith(".java")).map(Path::toString).forEach(args::add);
+        }
+        assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, args.toArray(new String[0])));
+        return new URLClassLoader(new URL[]{classes.toUri().toURL()}, getClass().getClassLoader());
+    }
+
+    /**
+     * @return The names of the generated profile classes in the folder
+     */
+    private List<String> generatedClasses(Path folder) throws IOException {
+        try (var files = Files.list(folder)) {
+            return files.map(f -> f.getFileName().toString()).filter(f -> f.endsWith(".java") && !f.equals("PEGeneratedSupport.java")).map(f -> f.replace(".java", "")).sorted().toList();
+        }
+    }
+
+    private Path createPackage(Path tarball, String id, String version, String... dependencies) throws IOException {
+        String dependenciesJson = Stream.of(dependencies).map(d -> "\"" + d.replace("#", "\":\"") + "\"").collect(Collectors.joining(","));
+        try (var tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(Files.newOutputStream(tarball)))) {
+            addEntry(tar, "package/package.json", "{\"name\":\"" + id + "\",\"version\":\"" + version + "\",\"fhirVersions\":[\"4.0.1\"],\"dependencies\":{" + dependenciesJson + "}}");
+            addEntry(tar, "package/.index.json", "{\"index-version\":1,\"files\":[]}");
+        }
+        return tarball;
+    }
+
+    private NpmPackage readPackage(Path tarball) throws IOException {
+        try (var in = Files.newInputStream(tarball)) {
+            return NpmPackage.fromPackage(in);
+        }
+    }
+
+    /**
+     * Creates a package with a single profile deriving from another
+     */
+    private Path createProfilePackage(Path tarball, String id, String url, String baseDefinition) throws IOException {
+        try (var tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(Files.newOutputStream(tarball)))) {
+            addEntry(tar, "package/package.json", "{\"name\":\"" + id + "\",\"version\":\"1.0.0\",\"fhirVersions\":[\"4.0.1\"],\"dependencies\":{}}");
+            addEntry(tar, "package/.index.json", "{\"index-version\":1,\"files\":[{\"filename\":\"StructureDefinition-profile.json\",\"resourceType\":\"StructureDefinition\",\"id\":\"profile\",\"url\":\"" + url + "\"}]}");
+            addEntry(tar, "package/StructureDefinition-profile.json", "{\"resourceType\":\"StructureDefinition\",\"id\":\"profile\",\"url\":\"" + url + "\",\"name\":\"Profile\",\"status\":\"draft\",\"kind\":\"resource\",\"abstract\":false,\"type\":\"Patient\",\"baseDefinition\":\"" + baseDefinition + "\",\"derivation\":\"constraint\"}");
+        }
+        return tarball;
+    }
+
+    /**
+     * Copies a package from the package cache into a tarball under another id
+     *
+     * @param changedProfile The canonical URL of a profile to change the description of, or null
+     */
+    private Path copyPackage(NpmPackage source, Path tarball, String id, String changedProfile) throws IOException {
+        var mapper = new ObjectMapper();
+        Path root = Path.of(source.getPath());
+        try (var tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(Files.newOutputStream(tarball)));
+             var files = Files.walk(root.resolve("package"))) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                byte[] content = Files.readAllBytes(file);
+                if (name.equals("package/package.json")) {
+                    var manifest = (ObjectNode) mapper.readTree(content);
+                    manifest.put("name", id);
+                    content = mapper.writeValueAsBytes(manifest);
+                } else if (changedProfile != null && name.endsWith(".json")) {
+                    var resource = mapper.readTree(content);
+                    if (resource instanceof ObjectNode node && changedProfile.equals(node.path("url").asText())) {
+                        node.put("description", node.path("description").asText() + " Changed.");
+                        content = mapper.writeValueAsBytes(node);
+                    }
+                }
+                addEntry(tar, name, content);
+            }
+        }
+        return tarball;
+    }
+
+    private void addEntry(TarArchiveOutputStream tar, String name, String content) throws IOException {
+        addEntry(tar, name, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void addEntry(TarArchiveOutputStream tar, String name, byte[] bytes) throws IOException {
+        var entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        tar.putArchiveEntry(entry);
+        tar.write(bytes);
+        tar.closeArchiveEntry();
     }
 
     private org.hl7.fhir.r4.context.SimpleWorkerContext createWorkerContextR4Example(String packageId, String version) throws IOException {